@@ -0,0 +1,550 @@
+/*
+ * Benchmark.java
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * A headless benchmark harness for the frame pipeline.
+ * It loads real scene files, drives them through the engine with no window,
+ * and reports nanoseconds per frame for each stage in CSV form,
+ * so that results can be collected and compared from one commit to the next.<p>
+ *
+ * Usage (from the top directory, so that data/lib resolves):
+ * <pre>
+ * java -cp src Benchmark render [-warmup n] [-frames n] [-spin degrees] [-parallel] [-tag s] [-out file] scene...
+ * java -cp src Benchmark pick   [-warmup n] [-frames n] [-tag s] [-out file] scene...
+ * java -cp src Benchmark load   [-warmup n] [-frames n] [-tag s] [-out file] scene...
+ * java -cp src Benchmark seed   [-warmup n] [-frames n] [-tag s] [-out file]
+ * </pre>
+ * In pick mode a frame is one call to findShape, and the sphere tree
+ * is compared against the linear scan, both for time and for results.
+ * In load mode a frame is one complete load of the scene file;
+ * the defaults are much smaller, and the scene can also be a directory
+ * such as data/lib/uni4, in which case each shape file in it is loaded.
+ * Reading is also timed with only the disk part of the include cache,
+ * without the include cache, and then also with the old StreamTokenizer
+ * path, for comparison.<p>
+ *
+ * Seed mode takes no scenes.  A frame is one map generation, for each of
+ * a fixed list of options and seeds.  Every map has to come out the same
+ * as the first one, and that one has to match the hash recorded for the
+ * case, or it's reported and the exit status is nonzero.
+ */
+
+public class Benchmark {
+
+// --- main ---
+
+   public static void main(String[] args) throws Exception {
+
+      System.setProperty("java.awt.headless","true"); // before anything touches AWT
+
+      if (args.length == 0) { usage(); return; }
+
+      Benchmark b = new Benchmark();
+      String mode = args[0];
+
+      if (mode.equals("load")) { b.warmup = 2; b.frames = 5; } // override below if you like
+      if (mode.equals("seed")) { b.warmup = 2; b.frames = 10; }
+
+      LinkedList files = new LinkedList();
+      for (int i=1; i<args.length; i++) {
+         String s = args[i];
+         if      (s.equals("-warmup")) b.warmup = Integer.parseInt(args[++i]);
+         else if (s.equals("-frames")) b.frames = Integer.parseInt(args[++i]);
+         else if (s.equals("-spin"  )) b.spin = Double.parseDouble(args[++i]);
+         else if (s.equals("-parallel")) GeomModel.parallelRender = true;
+         else if (s.equals("-tag"   )) b.tag = args[++i];
+         else if (s.equals("-out"   )) b.out = new File(args[++i]);
+         else files.add(new File(s));
+      }
+      if (files.isEmpty() != mode.equals("seed")) { usage(); return; }
+
+      b.open();
+      try {
+         if (mode.equals("seed")) b.runSeed();
+         for (int i=0; i<files.size(); i++) {
+            File file = (File) files.get(i);
+            if      (mode.equals("render")) b.runRender(file);
+            else if (mode.equals("pick"  )) b.runPick(file);
+            else if (mode.equals("load"  )) b.runLoad(file);
+            else { usage(); return; }
+         }
+      } finally {
+         b.close();
+      }
+      if (b.failures != 0) System.exit(1);
+   }
+
+   private static void usage() {
+      System.out.println("usage: Benchmark render [-warmup n] [-frames n] [-spin degrees] [-parallel] [-tag s] [-out file] scene...");
+      System.out.println("       Benchmark pick   [-warmup n] [-frames n] [-tag s] [-out file] scene...");
+      System.out.println("       Benchmark load   [-warmup n] [-frames n] [-tag s] [-out file] scene...");
+      System.out.println("       Benchmark seed   [-warmup n] [-frames n] [-tag s] [-out file]");
+   }
+
+// --- fields ---
+
+   private int warmup = 50;
+   private int frames = 200;
+   private double spin = 1; // degrees per frame, so consecutive frames differ
+   private String tag = "";
+   private File out; // null means standard output
+
+   private PrintWriter writer;
+   private Options opt;
+   private int failures;
+
+   private static final int EDGE = 600; // nominal panel size in pixels
+
+// --- output ---
+
+   private static final String HEADER = "tag,mode,scene,stage,dim,shapes,frames,mean_ns,min_ns,stddev_ns,lines";
+
+   private void open() throws IOException {
+      if (out == null) {
+         writer = new PrintWriter(System.out,true);
+         writer.println(HEADER);
+      } else {
+         boolean fresh = ! out.exists();
+         writer = new PrintWriter(new FileWriter(out,/* append = */ true));
+         if (fresh) writer.println(HEADER);
+         // append so that runs from several commits accumulate in one file
+      }
+   }
+
+   private void close() {
+      writer.flush();
+      if (out != null) writer.close();
+   }
+
+   private void report(String mode, File file, String stage, int dim, int shapes, Stat stat) {
+      report(mode,file.getPath(),stage,dim,shapes,stat);
+   }
+
+   private void report(String mode, String scene, String stage, int dim, int shapes, Stat stat) {
+      writer.println(tag + "," + mode + "," + scene + "," + stage + "," + dim + "," + shapes + ","
+                     + stat.n + "," + stat.mean() + "," + stat.min + "," + stat.stddev() + "," + stat.lines/Math.max(stat.n,1));
+   }
+
+// --- statistics ---
+
+   private static class Stat {
+
+      public int n;
+      public long min = Long.MAX_VALUE;
+      public double sum;
+      public double sum2;
+      public long lines; // total over all frames
+
+      public void add(long ns, int size) {
+         n++;
+         if (ns < min) min = ns;
+         sum += ns;
+         sum2 += ((double) ns)*ns;
+         lines += size;
+      }
+
+      public long mean() {
+         return (n == 0) ? 0 : (long) (sum/n);
+      }
+
+      public long stddev() {
+         if (n < 2) return 0;
+         double m = sum/n;
+         double v = (sum2 - n*m*m)/(n-1);
+         return (v > 0) ? (long) Math.sqrt(v) : 0;
+      }
+   }
+
+// --- headless display ---
+
+   /**
+    * A display interface that hands the finished frames to panels
+    * that are never put in a window, just as Maze does with visible ones.
+    */
+   private static class HeadlessDisplay implements IDisplay {
+
+      public LineBuffer[] buf = new LineBuffer[2];
+      public PanelLine[] panel = new PanelLine[] { new PanelLine(), new PanelLine() };
+      public int active;
+
+      public void setMode3D(LineBuffer buf) {
+         this.buf[0] = buf;
+         active = 1;
+      }
+
+      public void setMode4DMono(LineBuffer buf) {
+         this.buf[0] = buf;
+         active = 1;
+      }
+
+      public void setMode4DStereo(LineBuffer buf1, LineBuffer buf2) {
+         buf[0] = buf1;
+         buf[1] = buf2;
+         active = 2;
+      }
+
+      public void nextFrame() {
+         for (int i=0; i<active; i++) panel[i].setLines(buf[i]);
+      }
+   }
+
+// --- helpers ---
+
+   private Options getOptions() throws ValidationException {
+      if (opt == null) {
+         final Options temp = new Options();
+         PropertyResource.load("default.properties",new IStorable() {
+               public void load(IStore store) throws ValidationException { store.getObject("opt",temp); }
+               public void save(IStore store) throws ValidationException {}
+            });
+         opt = temp;
+      }
+      return opt;
+   }
+
+   private static int countShapes(GeomModel model) {
+      Geom.Shape[] shapes = model.retrieveShapes();
+      int count = 0;
+      for (int i=0; i<shapes.length; i++) {
+         if (shapes[i] != null) count++;
+      }
+      return count;
+   }
+
+// --- render mode ---
+
+   private void runRender(File file) throws Exception {
+
+      Options opt = getOptions();
+
+      GeomModel model = Core.buildModel(Core.readGeom(file));
+      int dim = model.getDimension();
+      int shapes = countShapes(model);
+
+      OptionsView   ov = (dim == 3) ? opt.ov3 : opt.ov4;
+      OptionsMotion ot = (dim == 3) ? opt.ot3 : opt.ot4;
+
+      boolean[] texture = model.getDesiredTexture();
+      model.setTexture((texture != null) ? texture : ov.texture);
+
+   // end to end, through the engine
+
+      HeadlessDisplay hd = new HeadlessDisplay();
+      Engine engine = new Engine(hd);
+      engine.newGame(dim,model,ov,opt.os,ot,true);
+      engine.setEdge(EDGE);
+
+      Stat total = new Stat();
+      for (int i=0; i<warmup+frames; i++) {
+         engine.rotateAngle(0,dim-1,spin);
+         long t0 = System.nanoTime();
+         engine.renderAbsolute();
+         long t1 = System.nanoTime();
+         if (i >= warmup) total.add(t1-t0,hd.buf[0].size());
+      }
+
+   // stage by stage, using the same objects as the engine's standard path
+
+      double[] origin = (double[]) engine.getOrigin().clone();
+      double[][] axis = Geom.clone2(engine.getAxisArray());
+
+      LineBuffer bufAbsolute = new LineBuffer(dim);
+      LineBuffer bufRelative = new LineBuffer(dim-1);
+      LineBuffer bufDisplay  = new LineBuffer(2);
+
+      model.setBuffer(bufAbsolute); // takes the model away from the engine, we're done with it
+      RenderRelative renderRelative = new RenderRelative(bufAbsolute,bufRelative,dim,ov.retina);
+      Display display = (dim == 3) ? (Display) new DisplayScaled(bufRelative,bufDisplay,ov.scale)
+                                   : (Display) new DisplayStereo(bufRelative,bufDisplay,0,ov.scale,opt.os,EDGE);
+      PanelLine panel = new PanelLine();
+
+      Stat sRender   = new Stat();
+      Stat sRelative = new Stat();
+      Stat sDisplay  = new Stat();
+      Stat sPanel    = new Stat();
+
+      for (int i=0; i<warmup+frames; i++) {
+         Vec.rotateAngle(axis[0],axis[dim-1],axis[0],axis[dim-1],spin);
+
+         long t0 = System.nanoTime();
+         model.render(origin);
+         long t1 = System.nanoTime();
+         renderRelative.run(axis);
+         long t2 = System.nanoTime();
+         display.run();
+         long t3 = System.nanoTime();
+         panel.setLines(bufDisplay);
+         long t4 = System.nanoTime();
+
+         if (i >= warmup) {
+            sRender  .add(t1-t0,bufAbsolute.size());
+            sRelative.add(t2-t1,bufRelative.size());
+            sDisplay .add(t3-t2,bufDisplay .size());
+            sPanel   .add(t4-t3,bufDisplay .size());
+         }
+      }
+
+      report("render",file,"model.render",        dim,shapes,sRender  );
+      report("render",file,"RenderRelative.run",  dim,shapes,sRelative);
+      report("render",file,"Display.run",         dim,shapes,sDisplay );
+      report("render",file,"PanelLine.setLines",  dim,shapes,sPanel   );
+      report("render",file,"Engine.renderAbsolute",dim,shapes,total   );
+   }
+
+// --- pick mode ---
+
+   private void runPick(File file) throws Exception {
+
+      GeomModel model = Core.buildModel(Core.readGeom(file));
+      int dim = model.getDimension();
+      int shapes = countShapes(model);
+
+      double[] origin = new double[dim];
+      double[][] axis = new double[dim][dim];
+      model.initPlayer(origin,axis);
+
+      // half the rays point at shapes, so that there's something to find,
+      // and the other half point anywhere.  same rays for both methods.
+
+      int n = warmup+frames;
+      double[][] ray = new double[n][dim];
+      Random random = new Random(1);
+      Geom.Shape[] table = model.retrieveShapes();
+      for (int i=0; i<n; i++) {
+         Geom.Shape shape = (i%2 == 0) ? table[random.nextInt(table.length)] : null;
+         if (shape != null) {
+            Vec.sub(ray[i],shape.shapecenter,origin);
+         } else {
+            for (int a=0; a<dim; a++) ray[i][a] = random.nextGaussian();
+         }
+         if (Vec.norm(ray[i]) == 0) ray[i][0] = 1;
+         Vec.normalize(ray[i],ray[i]);
+      }
+
+      Geom.Shape[] resultTree   = new Geom.Shape[n];
+      Geom.Shape[] resultLinear = new Geom.Shape[n];
+
+      boolean save = GeomModel.linearPick;
+      try {
+         GeomModel.linearPick = false;
+         report("pick",file,"findShape.tree",  dim,shapes,runPick(model,origin,ray,resultTree  ));
+         GeomModel.linearPick = true;
+         report("pick",file,"findShape.linear",dim,shapes,runPick(model,origin,ray,resultLinear));
+      } finally {
+         GeomModel.linearPick = save;
+      }
+
+      int mismatch = 0;
+      for (int i=0; i<n; i++) {
+         if (resultTree[i] != resultLinear[i]) mismatch++;
+      }
+      if (mismatch != 0) System.err.println(file.getPath() + ": " + mismatch + " picks differ");
+   }
+
+   private Stat runPick(GeomModel model, double[] origin, double[][] ray, Geom.Shape[] result) {
+      Stat stat = new Stat();
+      for (int i=0; i<ray.length; i++) {
+         long t0 = System.nanoTime();
+         result[i] = model.findShape(origin,ray[i]);
+         long t1 = System.nanoTime();
+         if (i >= warmup) stat.add(t1-t0,0);
+      }
+      return stat;
+   }
+
+// --- load mode ---
+
+   private void runLoad(File file) throws Exception {
+
+      if (file.isDirectory()) {
+         File[] list = file.listFiles();
+         Arrays.sort(list);
+         for (int i=0; i<list.length; i++) {
+            if (list[i].isFile()) runLoad(list[i]);
+         }
+         return;
+      }
+
+      Stat sRead  = new Stat();
+      Stat sBuild = new Stat();
+      int dim = 0;
+      int shapes = 0;
+
+      for (int i=0; i<warmup+frames; i++) {
+         long t0 = System.nanoTime();
+         Context c = Core.readGeom(file);
+         long t1 = System.nanoTime();
+
+         if (c.stack.isEmpty()) { // library file, just definitions
+            if (i >= warmup) sRead.add(t1-t0,0);
+            shapes = 0;
+            Iterator j = c.dict.values().iterator();
+            while (j.hasNext()) {
+               Object o = j.next();
+               if (o instanceof Geom.Shape) { dim = ((Geom.Shape) o).getDimension(); shapes++; }
+            }
+            continue;
+         }
+
+         GeomModel model = Core.buildModel(c);
+         long t2 = System.nanoTime();
+
+         if (i >= warmup) {
+            sRead .add(t1-t0,0);
+            sBuild.add(t2-t1,0);
+         }
+         dim = model.getDimension();
+         shapes = countShapes(model);
+      }
+
+      // the same thing without the memory cache, without the include cache,
+      // and with the old tokenizer, for comparison
+
+      Stat sNoMemory = new Stat();
+      Stat sNoCache = new Stat();
+      Stat sStream = new Stat();
+      int saveMemory = IncludeCache.memoryLimit;
+      boolean saveCache = IncludeCache.enabled;
+      boolean saveStream = Language.useStreamTokenizer;
+      try {
+         IncludeCache.memoryLimit = 0;
+         IncludeCache.clearMemory();
+         readOnly(file,sNoMemory);
+         IncludeCache.enabled = false;
+         readOnly(file,sNoCache);
+         Language.useStreamTokenizer = true;
+         readOnly(file,sStream);
+      } finally {
+         IncludeCache.memoryLimit = saveMemory;
+         IncludeCache.enabled = saveCache;
+         Language.useStreamTokenizer = saveStream;
+      }
+
+      report("load",file,"Core.readGeom",dim,shapes,sRead);
+      report("load",file,"Core.readGeom.noMemoryCache",dim,shapes,sNoMemory);
+      report("load",file,"Core.readGeom.noIncludeCache",dim,shapes,sNoCache);
+      report("load",file,"Core.readGeom.StreamTokenizer",dim,shapes,sStream);
+      if (sBuild.n != 0) report("load",file,"Core.buildModel",dim,shapes,sBuild);
+   }
+
+   private void readOnly(File file, Stat stat) throws Exception {
+      for (int i=0; i<warmup+frames; i++) {
+         long t0 = System.nanoTime();
+         Core.readGeom(file);
+         long t1 = System.nanoTime();
+         if (i >= warmup) stat.add(t1-t0,0);
+      }
+   }
+
+// --- seed mode ---
+
+   /**
+    * One set of map options and a seed, and the hash of the map
+    * that the generator made from them when the case was added.
+    * Old saved games are regenerated from the options and the seed,
+    * so if the hash ever changes, those games come out different.
+    */
+   private static class SeedCase {
+
+      public String name;
+      public int dimSpace;
+      public OptionsMap om;
+      public long seed;
+      public long hash;
+
+      public SeedCase(String name, int dimSpace, int dimMap, int size, double density, double twist, double branch,
+                      boolean allowLoops, double loopCross, long seed, long hash) {
+         this.name = name;
+         this.dimSpace = dimSpace;
+
+         om = new OptionsMap(dimSpace);
+         om.dimMap = dimMap;
+         for (int i=0; i<dimSpace; i++) om.size[i] = (i < dimMap) ? size : 1;
+         om.density = density;
+         om.twistProbability = twist;
+         om.branchProbability = branch;
+         om.allowLoops = allowLoops;
+         om.loopCrossProbability = loopCross;
+
+         this.seed = seed;
+         this.hash = hash;
+      }
+   }
+
+   private static final SeedCase[] seedCases = {
+      // the first two are the default options
+      new SeedCase("3d-default",3,3,10,0.1,0.2,0.2,true, 0.7,            1L,  350541050015394524L),
+      new SeedCase("4d-default",4,4, 3,1,  0.4,0.2,false,0.7,            1L, 7056160167932510032L),
+      new SeedCase("3d-dense",  3,3,12,0.6,0.5,0.5,true, 0.3,        12345L, 7684868632217383568L),
+      new SeedCase("3d-flat",   3,2,20,0.8,0.3,0.6,false,0.5,      -987654L, 6822756614699616544L),
+      new SeedCase("4d-large",  4,4,10,0.5,0.4,0.3,true, 0.7,1234567890123L,-6475591995120788344L),
+      new SeedCase("4d-noloops",4,4, 8,1,  0.6,0.1,false,0.7,           42L,-1906271106958597831L)
+   };
+
+   private void runSeed() {
+      for (int c=0; c<seedCases.length; c++) {
+         SeedCase sc = seedCases[c];
+
+         Map first = null;
+         Stat stat = new Stat();
+         for (int i=0; i<warmup+frames; i++) {
+            long t0 = System.nanoTime();
+            Map map = new Map(sc.dimSpace,sc.om,sc.seed);
+            long t1 = System.nanoTime();
+            if (i >= warmup) stat.add(t1-t0,0);
+
+            if (first == null) {
+               first = map;
+            } else if ( ! same(map,first) ) {
+               System.err.println(sc.name + ": generation " + i + " differs from the first");
+               failures++;
+               break;
+            }
+         }
+
+         long hash = hash(first);
+         if (hash != sc.hash) {
+            System.err.println(sc.name + ": hash " + hash + ", expected " + sc.hash);
+            failures++;
+         }
+
+         report("seed",sc.name,"Map.new",sc.dimSpace,0,stat);
+      }
+   }
+
+   private static boolean same(Map m1, Map m2) {
+      int n = m1.getCellCount();
+      if (m2.getCellCount() != n) return false;
+      for (int i=0; i<n; i++) {
+         if (m1.isOpen(i) != m2.isOpen(i)) return false;
+      }
+      return (    Arrays.equals(m1.getStart (),m2.getStart ())
+               && Arrays.equals(m1.getFinish(),m2.getFinish()) );
+   }
+
+   private static long hash(Map map) {
+      long h = 17;
+      int n = map.getCellCount();
+      for (int i=0; i<n; i++) h = h*31 + (map.isOpen(i) ? 1 : 0);
+      h = hash(h,map.getStart ());
+      h = hash(h,map.getFinish());
+      return h;
+   }
+
+   private static long hash(long h, int[] p) {
+      if (p == null) return h*31 - 1; // no finish
+      for (int i=0; i<p.length; i++) h = h*31 + p[i];
+      return h;
+   }
+
+}
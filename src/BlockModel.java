@@ -58,7 +58,7 @@ public class BlockModel extends ActionModel {
       Geom.Shape shape = createShape();
       Vec.sub(reg2,reg2,shape.aligncenter);
       shape.translate(reg2);
-      shapes[findSlot(0)] = shape;
+      setShape(findSlot(0),shape);
    }
 
    private int calcDir(double[] n) {
@@ -86,7 +86,7 @@ public class BlockModel extends ActionModel {
 
       addShape = shape;
       int i = indexOf(shape);
-      shapes[i] = null;
+      setShape(i,null);
       clipUnits[i].setBoundaries(null);
       clearSeparators(i);
    }
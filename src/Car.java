@@ -37,6 +37,7 @@ public class Car {
 
       shape.systemMove = true;
       shape.noUserMove = true;
+      shape.unshareGeometry(); // so that bottomFace stays the face that moves
 
       int i = shape.findFace(/* axis = */ 1,/* sign = */ -1);
       if (i == -1) throw new Exception("Unable to find bottom face of railcar.");
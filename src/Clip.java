@@ -5,7 +5,6 @@
 import java.awt.Color;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Vector;
 
 /**
  * A helper class to hold the line-clipping algorithm.
@@ -142,69 +141,167 @@ public class Clip {
       public double getThreshold() { return t; }
    }
 
-   public static CustomBoundary calcViewBoundary(double[] origin, Boundary b1, Boundary b2) {
-
-      // the theory here is, b1 and b2 are faces (d-1), their intersection is a subface (d-2)
-      // and then we want to find the boundary that includes the subface and the origin (d-1).
-      // I think this way (clipping up front) is simpler than trying to clip after projection.
-
-      // normals n1 and n2 define a plane, and we just solve for a new normal (1-x) n1 + x n2
-      // that includes the origin in the perpendicular (d-1)-space through the subface.
+   /**
+    * A boundary list that keeps the normals and thresholds in flat arrays
+    * so that it can be refilled every frame without allocating anything.
+    * Each clip unit owns one of these for its view boundaries.
+    */
+   public static class ViewBoundaryList implements BoundaryList {
 
-      double[] n1 = b1.getNormal();
-      double[] n2 = b2.getNormal();
-      double t1 = b1.getThreshold();
-      double t2 = b2.getThreshold();
+      private int dim;
+      private double[] normal; // size*dim, boundary i starts at i*dim
+      private double[] threshold;
+      private int size;
 
-      if (n1 == null || n2 == null) return null;
+      public ViewBoundaryList(int dim) {
+         this.dim = dim;
+         normal = new double[16*dim];
+         threshold = new double[16];
+         size = 0;
+      }
 
-      double k1 = Vec.dot(n1,origin)-t1;
-      double k2 = Vec.dot(n2,origin)-t2;
-      double x = k1/(k1-k2);
-      // we get sign change issues when k1 crosses k2, but we should only be calling this
-      // when b1 is visible and b2 isn't, in which case k1 > 0 and k2 < 0 and all is well.
-      // also works when b1 and b2 are swapped.
+      public void clear() { size = 0; }
 
-      // new normal is weighted sum of old normals,
-      // new thresh is weighted sum of old threshs
-      //
-      double[] n3 = new double[origin.length];
-      Vec.mid(n3,n1,n2,x);
-      double t3 = (1-x)*t1 + x*t2;
+      public int getSize() { return size; }
 
-      return new CustomBoundary(n3,t3);
-   }
+      /**
+       * This allocates, so it's only for occasional use.
+       * Clipping uses the flat arrays directly.
+       */
+      public Boundary getBoundary(int i) {
+         double[] n = new double[dim];
+         System.arraycopy(normal,i*dim,n,0,dim);
+         return new CustomBoundary(n,threshold[i]);
+      }
 
-   public static class CustomBoundaryList implements BoundaryList {
+      private void ensureCapacity(int capacity) {
+         if (capacity <= threshold.length) return;
+         int len = Math.max(capacity,2*threshold.length);
 
-      private Vector boundaries;
+         double[] temp = new double[len*dim];
+         System.arraycopy(normal,0,temp,0,size*dim);
+         normal = temp;
 
-      public CustomBoundaryList() {
-         boundaries = new Vector();
+         temp = new double[len];
+         System.arraycopy(threshold,0,temp,0,size);
+         threshold = temp;
       }
 
-      public void addBoundary(Boundary b) { boundaries.add(b); }
-
-      public int getSize() { return boundaries.size(); }
-      public Boundary getBoundary(int i) { return (Boundary) boundaries.get(i); }
+      /**
+       * Add the view boundary through the intersection of two faces.
+       * The theory here is, b1 and b2 are faces (d-1), their intersection is a subface (d-2)
+       * and then we want to find the boundary that includes the subface and the origin (d-1).
+       * I think this way (clipping up front) is simpler than trying to clip after projection.
+       */
+      public void addViewBoundary(double[] origin, Boundary b1, Boundary b2) {
+
+         // normals n1 and n2 define a plane, and we just solve for a new normal (1-x) n1 + x n2
+         // that includes the origin in the perpendicular (d-1)-space through the subface.
+
+         double[] n1 = b1.getNormal();
+         double[] n2 = b2.getNormal();
+         double t1 = b1.getThreshold();
+         double t2 = b2.getThreshold();
+
+         if (n1 == null || n2 == null) return; // glass
+
+         double k1 = Vec.dot(n1,origin)-t1;
+         double k2 = Vec.dot(n2,origin)-t2;
+         double x = k1/(k1-k2);
+         // we get sign change issues when k1 crosses k2, but we should only be calling this
+         // when b1 is visible and b2 isn't, in which case k1 > 0 and k2 < 0 and all is well.
+         // also works when b1 and b2 are swapped.
+
+         // new normal is weighted sum of old normals,
+         // new thresh is weighted sum of old threshs
+         //
+         ensureCapacity(size+1);
+         int base = size*dim;
+         for (int i=0; i<dim; i++) {
+            normal[base+i] = n1[i] + x * (n2[i] - n1[i]);
+         }
+         threshold[size] = (1-x)*t1 + x*t2;
+         size++;
+      }
    }
 
-   public static CustomBoundaryList calcViewBoundaries(double[] origin, Geom.Shape shape) {
+   /**
+    * Fill the list with the boundaries of the region that the shape hides from the origin.
+    * The face visibility flags must already be up to date.
+    */
+   public static void calcViewBoundaries(ViewBoundaryList list, double[] origin, Geom.Shape shape) {
 
-      CustomBoundaryList list = new CustomBoundaryList();
+      list.clear();
 
       // clip by subfaces where one face is visible and the other not
-      for (int i=0; i<shape.subface.length; i++) {
-         Geom.Subface sf = shape.subface[i];
+      Geom.Subface[] subface = shape.getSubfaces();
+      for (int i=0; i<subface.length; i++) {
+         Geom.Subface sf = subface[i];
          Geom.Face f1 = shape.face[sf.if1];
          Geom.Face f2 = shape.face[sf.if2];
          if (f1.visible != f2.visible) {
-            Boundary b = calcViewBoundary(origin,f1,f2);
-            if (b != null) list.addBoundary(b); // only null if glass
+            list.addViewBoundary(origin,f1,f2); // skipped if glass
+         }
+      }
+   }
+
+   /**
+    * The same as the general clip function, but for the flat arrays of a view boundary list.
+    */
+   public static int clip(double[] p0, double[] p1, ViewBoundaryList list, Result result) {
+
+      int size = list.size;
+      if (size == 0) { // result of glass in calcViewBoundaries
+         result.clip = KEEP_LINE;
+         return result.clip;
+      }
+
+      final double epsilon = 0.000001; // see above
+      int dim = list.dim;
+      double[] normal = list.normal;
+      double[] threshold = list.threshold;
+
+      result.a = 0;
+      result.b = 1;
+      result.clip = KEEP_NONE;
+
+      for (int i=0, base=0; i<size; i++, base+=dim) {
+
+         double d0 = 0;
+         double d1 = 0;
+         for (int j=0; j<dim; j++) {
+            double n = normal[base+j];
+            d0 += p0[j] * n;
+            d1 += p1[j] * n;
+         }
+         double v0 = d0 - threshold[i] - epsilon;
+         double v1 = d1 - threshold[i] - epsilon;
+
+         if (v0 > 0) {
+            if (v1 > 0) { // all safe, we're done
+               result.a = 1;
+               result.b = 0;
+            } else { // add to safe left part
+               double x = v0/(v0-v1);
+               if (x > result.a) { result.a = x; result.ia = i; }
+            }
+         } else {
+            if (v1 > 0) { // add to safe right part
+               double x = v0/(v0-v1);
+               if (x < result.b) { result.b = x; result.ib = i; }
+            }
+            // else nothing is safe, keep checking
+         }
+
+         if (result.a >= result.b) { // all safe
+            result.clip = KEEP_LINE;
+            return result.clip;
          }
       }
 
-      return list;
+      if (result.a > 0) result.clip |= KEEP_A;
+      if (result.b < 1) result.clip |= KEEP_B;
+      return result.clip;
    }
 
 // --- clip unit ---
@@ -215,24 +312,36 @@ public class Clip {
       public IDraw next;
       public Result clipResult;
       public double[] temp;
+      private ViewBoundaryList view; // reused every frame
 
       public Draw(int dim) {
          // bl and next vary now
          clipResult = new Result();
          temp = new double[dim];
+         view = new ViewBoundaryList(dim);
       }
 
       public void setBoundaries(BoundaryList bl) {
          this.bl = bl;
       }
 
+      /**
+       * Set the boundaries to the view boundaries of a shape,
+       * using storage that belongs to the clip unit.
+       */
+      public void setViewBoundaries(double[] origin, Geom.Shape shape) {
+         calcViewBoundaries(view,origin,shape);
+         bl = view;
+      }
+
       public IDraw chain(IDraw next) {
          this.next = next;
          return this; // convenience
       }
 
       public void drawLine(double[] p1, double[] p2, Color color, double[] origin) {
-         if (clip(p1,p2,bl,clipResult) == Clip.KEEP_LINE) {
+         int result = (bl instanceof ViewBoundaryList) ? clip(p1,p2,(ViewBoundaryList) bl,clipResult) : clip(p1,p2,bl,clipResult);
+         if (result == Clip.KEEP_LINE) {
             next.drawLine(p1,p2,color,origin);
          } else {
             if (clipResult.hasSegA()) {
@@ -414,7 +523,7 @@ public class Clip {
       // find a separator for a railcar, but railcars haven't animated yet.
       // it's just not worth getting into it.
 
-      return (gjk.separate(s1, s2) != Geom.nullSeparator);
+      return gjk.isSeparated(s1, s2);
    }
 
    public static boolean isSeparated(Geom.Shape shape, LinkedList list, GJKTester gjk) {
@@ -506,6 +615,13 @@ public class Clip {
 
 // --- GJK algorithm ---
 
+   /**
+    * A GJK separation test.  Shapes usually move only a little between calls,
+    * so the tester remembers the last separating normal and support vertices
+    * for each pair of shapes and tries those first, running the full search
+    * only if they don't separate any more.  The test itself doesn't allocate;
+    * only the separator objects returned by separate do, and those can be recycled.
+    */
    public static class GJKTester {
 
       int dim;
@@ -513,8 +629,19 @@ public class Clip {
       double[][] p, reg;
       int[][] v;
       double[] t, n;
+      int last; // index of the last support point, for the cache
       final static double epsilon = 0.000001;
 
+      // warm start cache, keyed by shape identity, open addressing with linear probing.
+      // it holds references to shapes, so it's cleared when it gets too big.
+      private Geom.Shape[] cache0; // null means empty slot
+      private Geom.Shape[] cache1;
+      private double[] cacheNormal; // dim per slot
+      private int[] cacheV0;
+      private int[] cacheV1;
+      private int cacheSize;
+      private static final int CACHE_MAX = 4096;
+
       public GJKTester(int dim) {
          this.dim = dim;
          s = new Geom.Shape[2];
@@ -530,25 +657,62 @@ public class Clip {
          for (int i = 0; i < reg.length; i++) {
             reg[i] = new double[dim];
          }
+         allocateCache(64);
       }
 
       public Geom.Separator separate(Geom.Shape s0, Geom.Shape s1) {
+         return separate(s0, s1, null);
+      }
+
+      /**
+       * @param spare A separator to fill in instead of allocating a new one,
+       *              or null.  It must own its normal, i.e., not be made from a face.
+       */
+      public Geom.Separator separate(Geom.Shape s0, Geom.Shape s1, Geom.NormalSeparator spare) {
+         if ( ! isSeparated(s0, s1) ) return Geom.nullSeparator;
+         if (spare == null) return new Geom.NormalSeparator(Geom.clone1(n), t[1], t[0], -1);
+         Vec.copy(spare.normal, n);
+         spare.threshMin = t[1];
+         spare.threshMax = t[0];
+         spare.invert = -1;
+         return spare;
+      }
+
+      /**
+       * Test whether two shapes are separated.  If they are, the normal
+       * and thresholds of the separator are left in n and t.
+       */
+      public boolean isSeparated(Geom.Shape s0, Geom.Shape s1) {
          s[0] = s0;
          s[1] = s1;
-         n = new double[dim];
+
+         int h = findCache(s0, s1);
+         if (cache0[h] != null) { // try the last normal first
+            System.arraycopy(cacheNormal, h*dim, n, 0, dim);
+            v[0][0] = cacheV0[h]; v[0][1] = cacheV1[h];
+            minkSupport(0, 0);
+            if (Vec.dot(n, p[0]) < epsilon) { putCache(h, s0, s1); return true; }
+         }
+
+         if ( ! search() ) return false;
+         putCache(h, s0, s1);
+         return true;
+      }
+
+      private boolean search() {
          Vec.sub(reg[dim-1], s[1].shapecenter, s[0].shapecenter);
          Vec.scale(n, reg[dim-1], 1);
-         if (!Vec.normalizeTry(n, n)) return Geom.nullSeparator;
+         if (!Vec.normalizeTry(n, n)) return false;
          v[0][0] = 0; v[0][1] = 0;
          minkSupport(0, 0);
-         if (Vec.dot(n, p[0]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+         if (Vec.dot(n, p[0]) < epsilon) return true;
 
          Vec.sub(reg[0], p[0], reg[dim-1]);
          //Vec.scale(n, n, -1);
          Vec.perpendicular(n, reg[0], epsilon);
          if (Vec.dot(n, p[0]) < 0) Vec.scale(n, n, -1);
          minkSupport(0, 1);
-         if (Vec.dot(n, p[1]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+         if (Vec.dot(n, p[1]) < epsilon) return true;
 
          Vec.sub(reg[0], p[0], reg[dim-1]);
          Vec.sub(reg[1], p[1], reg[dim-1]);
@@ -556,7 +720,7 @@ public class Clip {
          else  Vec.perpendicular(n, reg[0], reg[1], reg[2], epsilon);
          if (Vec.dot(n, p[0]) < 0) Vec.scale(n, n, -1);
          minkSupport(0, 2);
-         if (Vec.dot(n, p[2]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+         if (Vec.dot(n, p[2]) < epsilon) return true;
 
          if (dim == 4) {
             Vec.sub(reg[0], p[0], reg[dim-1]);
@@ -565,7 +729,7 @@ public class Clip {
             Vec.cross(n, reg[0], reg[1], reg[2]);
             if (Vec.dot(n, p[0]) < 0) Vec.scale(n, n, -1);
             minkSupport(0, 3);
-            if (Vec.dot(n, p[3]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+            if (Vec.dot(n, p[3]) < epsilon) return true;
          }
 
          Vec.sub(reg[0], p[1], p[0]);
@@ -584,7 +748,7 @@ public class Clip {
             Vec.scale(n, n, -1);
          }
          minkSupport(0, dim);
-         if (Vec.dot(n, p[dim]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+         if (Vec.dot(n, p[dim]) < epsilon) return true;
          label: for (int count = 0; count < 20; count++) {
             for (int i = 0; i < dim; i++) {
                int a = (i + 1) % dim;
@@ -602,23 +766,24 @@ public class Clip {
                if (d < 0) {
                   Vec.copy(p[i], p[dim]); v[i][0] = v[dim][0]; v[i][1] = v[dim][1];
                   minkSupport(i, dim);
-                  if (Vec.dot(n, p[dim]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+                  if (Vec.dot(n, p[dim]) < epsilon) return true;
                   continue label;
                }
                if (d < epsilon) {
                   minkSupport(dim, dim);
-                  if (Vec.dot(n, p[dim]) < epsilon) return new Geom.NormalSeparator(n, t[1], t[0], -1);
+                  if (Vec.dot(n, p[dim]) < epsilon) return true;
                }
             }
-            return Geom.nullSeparator;
+            return false;
          }System.out.println("i");
-      return new Geom.NormalSeparator(n, t[1], t[0], -1);
+      return true;
       }
 
       private void minkSupport(int from, int to) {
          support(p[to], false, from, to, 1);
          support(reg[0], true, from, to, 0);
          Vec.sub(p[to], p[to], reg[0]);
+         last = to;
       }
 
       private void support(double[] dest, boolean inv, int from, int to, int r) {
@@ -626,11 +791,12 @@ public class Clip {
          int next = v[from][r];
          int now = -1;
          int prev;
+         int[][] nbv = s[r].getNeighbors();
          double m = Vec.dot(s[r].vertex[next], reg[1]);
          while (next != now) {
             prev = now;
             now = next;
-            for (int i : s[r].nbv[now]) {
+            for (int i : nbv[now]) {
                if (i == prev) continue;
                double d = Vec.dot(s[r].vertex[i], reg[1]);
                if (d > m) {
@@ -643,6 +809,58 @@ public class Clip {
          t[r] = (inv) ? -m : m;
          v[to][r] = now;
       }
+   
+      private void allocateCache(int capacity) {
+         cache0 = new Geom.Shape[capacity];
+         cache1 = new Geom.Shape[capacity];
+         cacheNormal = new double[capacity*dim];
+         cacheV0 = new int[capacity];
+         cacheV1 = new int[capacity];
+         cacheSize = 0;
+      }
+
+      private int findCache(Geom.Shape s0, Geom.Shape s1) {
+         int mask = cache0.length-1;
+         int h = ((System.identityHashCode(s0)*31 + System.identityHashCode(s1)) * 0x9E3779B9) >>> 16 & mask;
+         while (cache0[h] != null && (cache0[h] != s0 || cache1[h] != s1)) h = (h+1) & mask;
+         return h;
+      }
+
+      private void putCache(int h, Geom.Shape s0, Geom.Shape s1) {
+         if (cache0[h] == null) {
+            if (cacheSize == CACHE_MAX) { // release old shapes and start over
+               allocateCache(64);
+            } else if (2*(cacheSize+1) > cache0.length) {
+               growCache();
+            }
+            h = findCache(s0, s1);
+            cache0[h] = s0;
+            cache1[h] = s1;
+            cacheSize++;
+         }
+         System.arraycopy(n, 0, cacheNormal, h*dim, dim);
+         cacheV0[h] = v[last][0];
+         cacheV1[h] = v[last][1];
+      }
+
+      private void growCache() {
+         Geom.Shape[] old0 = cache0;
+         Geom.Shape[] old1 = cache1;
+         double[] oldNormal = cacheNormal;
+         int[] oldV0 = cacheV0;
+         int[] oldV1 = cacheV1;
+         allocateCache(2*old0.length);
+         for (int i = 0; i < old0.length; i++) {
+            if (old0[i] == null) continue;
+            int h = findCache(old0[i], old1[i]);
+            cache0[h] = old0[i];
+            cache1[h] = old1[i];
+            System.arraycopy(oldNormal, i*dim, cacheNormal, h*dim, dim);
+            cacheV0[h] = oldV0[i];
+            cacheV1[h] = oldV1[i];
+            cacheSize++;
+         }
+      }
    }
 
 // --- test code ---
@@ -2,15 +2,17 @@
  * Clock.java
  */
 
-import java.awt.EventQueue;
-
 /**
  * A clock, i.e., an object that ticks at a given rate (except when it's idle).<p>
  *
  * javax.swing.Timer is supposed to do approximately the same thing, but ...
  * I didn't feel like I had complete control over the last tick, the coalesce behavior wasn't clear,
  * and, worst of all, when I tried it, it consistently ran slow.
- * Maybe it wasn't taking into account the time used by the action being performed?
+ * Maybe it wasn't taking into account the time used by the action being performed?<p>
+ *
+ * The ticks run on the clock thread itself, not on the event thread,
+ * so that rendering doesn't hold up input and repainting.
+ * Each tick holds the lock object, which is how other threads keep out of the way.
  */
 
 public class Clock {
@@ -18,27 +20,25 @@ public class Clock {
 // --- fields ---
 
    private IClock clockInterface;
+   private Object lock;
    private int interval; // ms
 
    private Thread thread;
 
    // synchronized access
    private boolean eventStart; // main -> clock
-   private boolean eventTick;
-   private boolean shouldIdle;
    private boolean isIdle;     // clock -> main
 
 // --- construction ---
 
-   public Clock(IClock clockInterface) {
+   public Clock(IClock clockInterface, Object lock) {
       this.clockInterface = clockInterface;
+      this.lock = lock;
       // interval initialized via setFrameRate
 
-      thread = new Thread(new Runnable() { public void run() { thread(); } });
+      thread = new Thread(new Runnable() { public void run() { thread(); } },"Clock");
 
       eventStart = false;
-      eventTick = false;
-      // shouldIdle is only valid when eventTick is true
       isIdle = false; // let thread set correct value
 
       thread.start();
@@ -62,36 +62,17 @@ public class Clock {
       signalStart();
    }
 
-   private void tick() {
-      boolean more;
-      try {
-         more = clockInterface.tick();
-      } catch (Throwable t) {
-         more = true;
-         // since we don't know, keep generating.  generation will stop eventually
-         // if you stop pressing on the keys, unless it's a train model.
-         // this is a desperate measure.  the controller is not designed to handle
-         // exceptions and has been left in an unknown state.
-      }
-      signalResult( /* shouldIdle = */ ! more );
-   }
-
 // --- synchronization ---
 
    private synchronized void signalStart() {
-      if ( ! isIdle ) return; // already started
-
       eventStart = true;
       notify();
+      // if the clock is running, this makes it run at least one more tick,
+      // in case the current tick already looked for key changes and is about to go idle.
    }
 
-   private synchronized void signalResult(boolean shouldIdle) {
-      // no need to check thread state, we know it because tick was called
-
-      this.shouldIdle = shouldIdle;
-
-      eventTick = true;
-      notify();
+   private synchronized void clearStart() {
+      eventStart = false;
    }
 
    private synchronized void waitIdle() throws InterruptedException {
@@ -101,25 +82,28 @@ public class Clock {
    private synchronized void waitStart() throws InterruptedException {
       isIdle = true;
       notify(); // to release constructor wait
-
       while ( ! eventStart ) wait();
       eventStart = false;
-
       isIdle = false;
    }
 
-   private synchronized boolean waitResult() throws InterruptedException {
-
-      while ( ! eventTick ) wait();
-      eventTick = false;
+// --- clock thread ---
 
-      return shouldIdle;
+   private boolean tick() {
+      try {
+         synchronized (lock) {
+            return clockInterface.tick();
+         }
+      } catch (Throwable t) {
+         return true;
+         // since we don't know, keep generating.  generation will stop eventually
+         // if you stop pressing on the keys, unless it's a train model.
+         // this is a desperate measure.  the controller is not designed to handle
+         // exceptions and has been left in an unknown state.
+      }
    }
 
-// --- clock thread ---
-
    private void thread() {
-      Runnable runTick = new Runnable() { public void run() { tick(); } };
       try {
          while (true) {
 
@@ -128,8 +112,8 @@ public class Clock {
             long base = System.currentTimeMillis();
             while (true) {
 
-               EventQueue.invokeLater(runTick);
-               if ( /* shouldIdle = */ waitResult() ) break;
+               clearStart();
+               if ( ! tick() ) break; // idle, unless a start came in during the tick
 
                long now  = System.currentTimeMillis();
                long next = base + interval; // unsynchronized use of interval is OK
@@ -239,6 +239,7 @@ public class Command {
    public static class ShapeTexture implements ICommand {
       public void exec(Context c) throws Exception {
          Geom.Shape s = (Geom.Shape) c.stack.pop();
+         s.unshare(); // the texture takes over the arrays
          Geom.Texture t = new Geom.Texture();
          t.edge = s.edge;
          t.vertex = s.vertex;
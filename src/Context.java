@@ -20,6 +20,10 @@ public class Context {
    public HashSet included; // File in canonical form
    public LinkedList topLevelInclude; // String
    public HashSet topLevelDef; // String
+   public HashMap origin; // String -> IncludeCache.Origin
+   public IncludeCache.Frame frame; // innermost include being recorded, or null
+   public HashMap prefetch; // File -> entry from IncludeCache.prefetch, or null
+   public LoadProgress progress; // or null
 
    public Context() {
       stack = new Stack();
@@ -29,6 +33,7 @@ public class Context {
       included = new HashSet();
       topLevelInclude = new LinkedList();
       topLevelDef = new HashSet();
+      origin = new HashMap();
    }
 
    public boolean isTopLevel() {
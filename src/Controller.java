@@ -2,7 +2,9 @@
  * Controller.java
  */
 
+import java.awt.Color;
 import java.awt.EventQueue;
+import java.util.Vector;
 
 /**
  * An object that watches a key buffer and controls an engine based on which keys are down.
@@ -44,7 +46,10 @@ public class Controller implements IClock {
    private Align alignActive;
 
    private Command[] reg1; // temporary register for tick
-   private Command commandChain;
+   private Command commandChain; // guarded by the tick lock
+
+   private Clock clock;
+   private Object lock; // the lock each tick holds, see setClock
 
    private double[] saveOrigin;
    private double[][] saveAxis;
@@ -104,6 +109,15 @@ public class Controller implements IClock {
       dAlignRotate = 90 / (double) nAlignRotate;
    }
 
+   /**
+    * The menu commands run on the event thread, so anything they do to the
+    * controller or the model has to happen under the same lock as the ticks.
+    */
+   public void setClock(Clock clock, Object lock) {
+      this.clock = clock;
+      this.lock = lock;
+   }
+
    public void setKeysNew(IKeysNew keysNew) {
       this.keysNew = keysNew;
    }
@@ -131,6 +145,7 @@ public class Controller implements IClock {
       this.alignMode = alignMode;
       target = engine;
 
+      buf.drain();
       buf.clearPressed(); // in case there is a leftover press
       // the key mapper is responsible for the down flags
 
@@ -145,6 +160,8 @@ public class Controller implements IClock {
 
    public boolean tick() {
 
+      buf.drain(); // pick up key changes from the event thread
+
    // figure out which commands are being invoked
 
       int n = 0;
@@ -548,6 +565,7 @@ public class Controller implements IClock {
       command[KeyBuffer.getKeyNew(16)] = new CommandToggleHideSel();
       command[KeyBuffer.getKeyNew(17)] = new CommandPaint();
       command[KeyBuffer.getKeyNew(18)] = new CommandMenu(new Runnable() { public void run() { doSelectPaint(); } });
+      command[KeyBuffer.getKeyNew(19)] = new CommandToggleSeparateLog();
    }
 
    private abstract class NewCommand extends Command {
@@ -640,16 +658,25 @@ public class Controller implements IClock {
       }
    }
 
+   private class CommandToggleSeparateLog extends NewCommand {
+      public boolean run() {
+         SeparateLog.toggle(); // not tied to the model, it's global instrumentation
+         return false;
+      }
+   }
+
+   // these two run on the event thread, from CommandMenu.
+   // the dialogs are modal, so we can't hold the lock while they're up,
+   // but everything that touches the model goes through LockedSelectShape.
+
    private void doSelectShape() {
-      if (keysNew != null && keysNew.canAddShapes()) {
-         if (keysNew instanceof ISelectShape) { // always
+      ISelectShape iss = getSelectShape(/* paint = */ false);
+      if (iss != null) {
 
-            int quantity = menu.doSelectShape((ISelectShape) keysNew);
-            // other options feed back through ISelectShape directly
+         int quantity = menu.doSelectShape(iss);
+         // other options feed back through ISelectShape directly
 
-            if (quantity != -1) commandChain = new CommandAddShapes(quantity);
-            // the Maze class makes sure that tick will run
-         }
+         if (quantity != -1) chain(new CommandAddShapes(quantity));
       }
    }
 
@@ -687,15 +714,54 @@ public class Controller implements IClock {
    }
 
    private void doSelectPaint() {
-      if (keysNew != null && keysNew.canPaint()) {
-         if (keysNew instanceof ISelectShape) { // always
-            boolean b = menu.doSelectPaint((ISelectShape) keysNew);
-            if (b) commandChain = new CommandPaint();
-            // the process is the same as with doSelectShape
-         }
+      ISelectShape iss = getSelectShape(/* paint = */ true);
+      if (iss != null) {
+         boolean b = menu.doSelectPaint(iss);
+         if (b) chain(new CommandPaint());
+         // the process is the same as with doSelectShape
       }
    }
 
+   private ISelectShape getSelectShape(boolean paint) {
+      synchronized (lock) {
+         if (keysNew == null) return null;
+         if ( ! (paint ? keysNew.canPaint() : keysNew.canAddShapes()) ) return null;
+         if ( ! (keysNew instanceof ISelectShape) ) return null; // always is
+         return new LockedSelectShape((ISelectShape) keysNew);
+      }
+   }
+
+   /**
+    * Set the command for the next tick to run, then make sure there is one.
+    * The order matters: if the clock started first, the tick could come and
+    * go idle before the command was there.
+    */
+   private void chain(Command command) {
+      synchronized (lock) {
+         commandChain = command;
+      }
+      clock.start();
+   }
+
+   private class LockedSelectShape implements ISelectShape {
+
+      private ISelectShape iss;
+      public LockedSelectShape(ISelectShape iss) { this.iss = iss; }
+
+      public Vector getAvailableColors() { synchronized (lock) { return iss.getAvailableColors(); } }
+      public Vector getAvailableShapes() { synchronized (lock) { return iss.getAvailableShapes(); } }
+
+      public Color      getSelectedColor() { synchronized (lock) { return iss.getSelectedColor(); } }
+      public Geom.Shape getSelectedShape() { synchronized (lock) { return iss.getSelectedShape(); } }
+      public void setSelectedColor(Color      color) { synchronized (lock) { iss.setSelectedColor(color); } }
+      public void setSelectedShape(Geom.Shape shape) { synchronized (lock) { iss.setSelectedShape(shape); } }
+
+      public Color getPaintColor() { synchronized (lock) { return iss.getPaintColor(); } }
+      public void  setPaintColor(Color color) { synchronized (lock) { iss.setPaintColor(color); } }
+      public int  getPaintMode() { synchronized (lock) { return iss.getPaintMode(); } }
+      public void setPaintMode(int mode) { synchronized (lock) { iss.setPaintMode(mode); } }
+   }
+
    private class CommandPaint extends NewCommand {
       public boolean run() {
          if (keysNew != null && keysNew.canPaint()) {
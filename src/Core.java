@@ -9,6 +9,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -17,7 +18,11 @@ import java.util.ListIterator;
 import java.util.Map;
 
 /**
- * The game core, mostly detached from the user interface.
+ * The game core, mostly detached from the user interface.<p>
+ *
+ * The clock ticks the controller on its own thread while holding the lock on this object,
+ * so the methods that come in from the user interface and touch the game state
+ * are synchronized.  The key listener methods aren't, they go through the key buffer queue.
  */
 
 public class Core implements IOptions, IStorable, KeyListener, FocusListener {
@@ -90,12 +95,13 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       keyMapper3 = new KeyMapper(keyBuffer,opt.ok3,opt.okc);
       keyMapper4 = new KeyMapper(keyBuffer,opt.ok4,opt.okc);
       controller = new Controller(keyBuffer,this,menu,engine);
-      clock = new Clock(controller);
+      clock = new Clock(controller,/* lock = */ this);
+      controller.setClock(clock,this);
    }
 
 // --- external interface ---
 
-   public void newGame(int dim) {
+   public synchronized void newGame(int dim) {
       if (dim != 0) this.dim = dim; // allow zero to mean "keep the same"
 
       OptionsMap.copy(oa.omCurrent,om());
@@ -113,6 +119,7 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       controller.setAlwaysRun(model.isAnimated());
       clock.setFrameRate(ot().frameRate);
 
+      keyBuffer.drain(); // safe, we hold the lock
       boolean hack = keyBuffer.down[KeyBuffer.getKeyConfigID(OptionsKeysConfig.KEY_NEW_GAME)];
       keyMapper().releaseAll(); // sync up key mapper, which may have changed with dim
       if (hack) keyMapper().unrelease(oa.opt.okc.key[OptionsKeysConfig.KEY_NEW_GAME]);
@@ -132,11 +139,11 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       // clock will stop when controller reports idle
    }
 
-   public void resetWin() {
+   public synchronized void resetWin() {
       engine.resetWin();
    }
 
-   public void restartGame() {
+   public synchronized void restartGame() {
       engine.restartGame();
 
       keyMapper().releaseAll(); // sync up key mapper, which may have changed with dim
@@ -165,7 +172,7 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
    /**
     * Set options.  Ownership is transferred.
     */
-   public void setOptions(OptionsStereo os, OptionsImage oi) {
+   public synchronized void setOptions(OptionsStereo os, OptionsImage oi) {
       oa.opt.os = os;
       oa.opt.oi = oi;
 
@@ -175,7 +182,7 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
    /**
     * Set options.  Ownership is transferred.
     */
-   public void setOptionsAll(OptionsAll oa) {
+   public synchronized void setOptionsAll(OptionsAll oa) {
       this.oa.opt = oa.opt;
       // omCurrent is read-only
       this.oa.ocCurrent = oa.ocCurrent; // nullness should remain the same
@@ -192,14 +199,10 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       clock.setFrameRate(ot().frameRate);
    }
 
-   public void setEdge(int edge) {
+   public synchronized void setEdge(int edge) {
       engine.setEdge(edge);
    }
 
-   public void forceClockStart() {
-      clock.start();
-   }
-
    public static GeomModel buildModel(Context c) throws Exception {
 
       DimensionAccumulator da = new DimensionAccumulator();
@@ -272,6 +275,11 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       Train[] trains = (Train[]) tlist.toArray(new Train[tlist.size()]);
       Enemy[] enemies = (Enemy[]) elist.toArray(new Enemy[elist.size()]);
 
+      if (c.progress != null) {
+         c.progress.setShapes(shapes.length);
+         c.progress.check();
+      }
+
       if (track != null) TrainModel.init(track,trains); // kluge needed for track scale
 
       if (scenery.size() == 0) scenery.add((dtemp == 3) ? new Mat.Mat3() : (IScenery) new Mat.Mat4());
@@ -333,18 +341,30 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       return model;
    }
 
-   public void loadGeom(File file) throws Exception {
-
-   // read file
+   public static Context readGeom(File file) throws Exception {
+      return readGeom(file,null);
+   }
 
+   /**
+    * Read a scene file.  Neither this nor buildModel touches the game,
+    * so together they can run on any thread while the game goes on.
+    * @param progress An object to report progress to, which can also
+    *                 cancel the load, or null.
+    */
+   public static Context readGeom(File file, LoadProgress progress) throws Exception {
       Context c = DefaultContext.create();
       c.libDirs.add(new File("data" + File.separator + "lib"));
+      c.progress = progress;
       Language.include(c,file);
+      return c;
+   }
 
-   // build the model
-
-      GeomModel model = buildModel(c);
-      // run this before changing anything since it can fail
+   /**
+    * Switch to a model from buildModel.  This is the only part of loading
+    * a scene that touches the game, so the clock sees either the old scene
+    * or the new one, never anything in between.
+    */
+   public synchronized void loadGeom(GeomModel model) throws Exception {
 
    // switch to geom
 
@@ -636,7 +656,7 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       }
    }
 
-   public void saveGeom(File file) throws Exception {
+   public synchronized void saveGeom(File file) throws Exception {
 
       TokenFile t = new TokenFile(file);
       try {
@@ -652,6 +672,14 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       }
    }
 
+   public synchronized void saveMaze(File file) throws ValidationException {
+
+      MapModel model = (MapModel) engine.retrieveModel();
+      // cast OK since we've already checked getSaveType
+
+      MazeFile.save(file,this,model.getMap());
+   }
+
 // --- implementation of IStorable ---
 
    private static final String VALUE_CHECK       = "Maze";
@@ -664,7 +692,15 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
    private static final String KEY_OPTIONS_SEED  = "oe";
    private static final String KEY_ALIGN_MODE    = "align";
 
-   public void load(IStore store) throws ValidationException {
+   public synchronized void load(IStore store) throws ValidationException {
+      load(store,null);
+   }
+
+   /**
+    * @param cells The cells of a saved maze, see MazeFile,
+    *              or null to generate the maze from the seed like before.
+    */
+   public synchronized void load(IStore store, ByteBuffer cells) throws ValidationException {
 
    // produce a more helpful message when the file type isn't even close
 
@@ -691,6 +727,11 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       if ( ! oeLoad.isSpecified() ) throw App.getException("Core.e3");
       boolean alignModeLoad = store.getBoolean(KEY_ALIGN_MODE);
 
+      // the saved cells can be invalid too, so build the model now.
+      // ocLoad and ovLoad are what oc() and ov() will return below.
+      MapModel modelLoad = null;
+      if (cells != null) modelLoad = new MapModel(dimLoad,omLoad,ocLoad,oeLoad,ovLoad,cells,store);
+
    // ok, we know enough ... even if the engine parameters turn out to be invalid,
    // we can still start a new game
 
@@ -704,7 +745,7 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       oa.oeCurrent = oeLoad;
       // oeNext is not modified by loading a game
 
-      IModel model = new MapModel(dim,oa.omCurrent,oc(),oa.oeCurrent,ov());
+      IModel model = (modelLoad != null) ? modelLoad : new MapModel(dim,oa.omCurrent,oc(),oa.oeCurrent,ov());
       engine.newGame(dim,model,ov(),oa.opt.os,ot(),false);
 
       controller.setOptions(oa.opt.okc,ot());
@@ -722,11 +763,11 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       engine.load(store,alignModeLoad);
    }
 
-   public int getSaveType() {
+   public synchronized int getSaveType() {
       return engine.getSaveType();
    }
 
-   public void save(IStore store) throws ValidationException {
+   public synchronized void save(IStore store) throws ValidationException {
 
       store.putString(KEY_CHECK,VALUE_CHECK);
 
@@ -737,7 +778,7 @@ public class Core implements IOptions, IStorable, KeyListener, FocusListener {
       store.putObject(KEY_OPTIONS_SEED,oa.oeCurrent);
       store.putBoolean(KEY_ALIGN_MODE,controller.getAlignMode());
 
-      engine.save(store,om());
+      engine.save(store);
    }
 
 // --- implementation of KeyListener ---
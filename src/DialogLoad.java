@@ -0,0 +1,133 @@
+/*
+ * DialogLoad.java
+ */
+
+import java.io.File;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+
+/**
+ * A dialog for showing the progress of a scene load and letting the user cancel it.
+ * It isn't modal, and it doesn't take the focus, so the game keeps running underneath.
+ * It only appears if the load takes a while, and it goes away on its own
+ * when the owner calls dispose.
+ */
+
+public class DialogLoad extends JDialog {
+
+// --- constants ---
+
+   private static final int POLL_INTERVAL = 100; // ms
+   private static final int SHOW_DELAY = 500; // ms
+
+// --- fields ---
+
+   private File file;
+   private LoadProgress progress;
+
+   private JLabel note;
+   private Timer timer;
+   private long start;
+   private boolean disposed;
+
+// --- construction ---
+
+   public DialogLoad(Frame owner, File file, LoadProgress progress) {
+      super(owner,s("s1"),false);
+
+      this.file = file;
+      this.progress = progress;
+
+      setResizable(false);
+      setFocusableWindowState(false); // keys should keep going to the game
+
+      setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+      addWindowListener( new WindowAdapter() { public void windowClosing(WindowEvent e) { doCancel(); } } );
+
+   // create main panel
+
+      note = new JLabel();
+      JProgressBar bar = new JProgressBar();
+      bar.setIndeterminate(true); // we don't know how much is left
+
+      JPanel panelMain = new JPanel();
+      panelMain.setBorder(BorderFactory.createEmptyBorder(5,5,5,5));
+
+      GridBagHelper helper = new GridBagHelper(panelMain);
+      int y = 0;
+
+      helper.add(0,y++,note);
+      helper.add(0,y++,Box.createVerticalStrut(5));
+      helper.addFill(0,y++,bar);
+
+   // create buttons
+
+      JPanel panelButton = new JPanel();
+      JButton button;
+
+      button = new JButton(s("s4"));
+      button.addActionListener( new ActionListener() { public void actionPerformed(ActionEvent e) { doCancel(); } } );
+      panelButton.add(button);
+
+   // add to content pane
+
+      Container contentPane = getContentPane();
+      contentPane.setLayout(new BorderLayout());
+
+      contentPane.add(panelMain,  BorderLayout.CENTER);
+      contentPane.add(panelButton,BorderLayout.SOUTH);
+
+   // finish up
+
+      update();
+
+      timer = new Timer(POLL_INTERVAL,new ActionListener() { public void actionPerformed(ActionEvent e) { doPoll(); } });
+      start = System.currentTimeMillis();
+      timer.start();
+   }
+
+// --- helpers ---
+
+   private static String s(String key) {
+      return App.getString("DialogLoad." + key);
+   }
+
+   private void update() {
+      int shapes = progress.getShapes();
+      if (shapes == 0) {
+         note.setText(App.getString("DialogLoad.s2",new Object[] { file.getName(), Long.valueOf(progress.getChars()/1024) }));
+      } else {
+         note.setText(App.getString("DialogLoad.s3",new Object[] { file.getName(), Integer.valueOf(shapes) }));
+      }
+   }
+
+// --- commands ---
+
+   private void doPoll() {
+      if (disposed) return; // tick that was already queued
+      update();
+      if ( ! isVisible() ) {
+         if (System.currentTimeMillis()-start < SHOW_DELAY) return;
+         pack();
+         setLocationRelativeTo(getOwner());
+         setVisible(true);
+      } else if (note.getPreferredSize().width > note.getWidth()) {
+         pack(); // the note got longer
+      }
+   }
+
+   private void doCancel() {
+      progress.cancel();
+      dispose();
+   }
+
+   public void dispose() {
+      disposed = true;
+      timer.stop();
+      super.dispose();
+   }
+
+}
+
@@ -15,12 +15,22 @@ public class DisplayScaled extends Display {
 
    private double scale;
 
+   private double[] src1; // temporary registers
+   private double[] src2;
+   private double[] dest1;
+   private double[] dest2;
+
 // --- construction ---
 
    public DisplayScaled(LineBuffer in, LineBuffer out, double scale) {
       this.in = in;
       this.out = out;
 
+      src1 = new double[in.getDimension()];
+      src2 = new double[in.getDimension()];
+      dest1 = new double[out.getDimension()];
+      dest2 = new double[out.getDimension()];
+
       setScale(scale);
    }
 
@@ -44,12 +54,10 @@ public class DisplayScaled extends Display {
    public void run() {
       out.clear();
       for (int i=0; i<in.size(); i++) {
-         Line src = in.get(i);
-         Line dest = out.getNext();
-
-         convert(dest.p1,src.p1);
-         convert(dest.p2,src.p2);
-         dest.color = src.color;
+         in.get(i,src1,src2);
+         convert(dest1,src1);
+         convert(dest2,src2);
+         out.add(dest1,dest2,in.getRGB(i));
       }
    }
 
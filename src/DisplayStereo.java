@@ -2,7 +2,7 @@
  * DisplayStereo.java
  */
 
-import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
 import java.awt.Toolkit;
 
 /**
@@ -23,6 +23,10 @@ public class DisplayStereo extends Display {
    private double[] center; // real-space vector from eye to window center
    private double[][] axis; // axes of retina cube
    private double[] reg1; // temporary register
+   private double[] src1; // more temporary registers
+   private double[] src2;
+   private double[] dest1;
+   private double[] dest2;
 
    private double scaleCache; // cache only used to allow single-parameter changes
    private OptionsStereo osCache;
@@ -38,6 +42,10 @@ public class DisplayStereo extends Display {
       center = new double[3];
       axis = new double[3][3];
       reg1 = new double[3];
+      src1 = new double[in.getDimension()];
+      src2 = new double[in.getDimension()];
+      dest1 = new double[out.getDimension()];
+      dest2 = new double[out.getDimension()];
 
       osCache = new OptionsStereo();
 
@@ -100,8 +108,7 @@ public class DisplayStereo extends Display {
 
    // scales
 
-      Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-      double pixels = os.screenWidth / screenSize.width;
+      double pixels = os.screenWidth / getScreenPixels();
       // now N * pixels is a number with real-world dimensions
 
       scaleWindow = ((double) edge)/2 * pixels;
@@ -152,6 +159,15 @@ public class DisplayStereo extends Display {
       Vec.rotateAngle(axis[1],axis[2],axis[1],axis[2],-os.tiltVertical); // sign convention
    }
 
+   // there's no screen when running headless (see Benchmark),
+   // so just pretend we have a typical one
+   private static final int HEADLESS_SCREEN_PIXELS = 1920;
+
+   private static int getScreenPixels() {
+      if (GraphicsEnvironment.isHeadless()) return HEADLESS_SCREEN_PIXELS;
+      return Toolkit.getDefaultToolkit().getScreenSize().width;
+   }
+
 // --- processing ---
 
    /**
@@ -183,12 +199,10 @@ public class DisplayStereo extends Display {
       if ( ! active ) return;
 
       for (int i=0; i<in.size(); i++) {
-         Line src = in.get(i);
-         Line dest = out.getNext();
-
-         convert(dest.p1,src.p1);
-         convert(dest.p2,src.p2);
-         dest.color = src.color;
+         in.get(i,src1,src2);
+         convert(dest1,src1);
+         convert(dest2,src2);
+         out.add(dest1,dest2,in.getRGB(i));
       }
    }
 
@@ -3,6 +3,7 @@
  */
 
 import java.awt.Color;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -107,49 +108,121 @@ public class DynamicArray {
       }
    }
 
+// --- flat arrays ---
+
+   // the arrays below are stored flat, with the last axis varying fastest.
+   // a cell can be addressed by its coordinates or by its linear index,
+   // and moving one step in a direction just adds the step for that
+   // direction to the index (see getStep).
+
+   public static int[] makeStrides(int[] limits) {
+      int[] stride = new int[limits.length];
+      int n = 1;
+      for (int i=limits.length-1; i>=0; i--) {
+         stride[i] = n;
+         n *= limits[i];
+      }
+      return stride;
+   }
+
+   public static int getCount(int[] limits) {
+      int n = 1;
+      for (int i=0; i<limits.length; i++) n *= limits[i];
+      return n;
+   }
+
+   public static int index(int[] p, int[] stride) {
+      int n = 0;
+      for (int i=0; i<stride.length; i++) n += p[i]*stride[i];
+      return n;
+   }
+
+   /**
+    * The inverse of index.
+    */
+   public static void coordinates(int[] dest, int n, int[] stride) {
+      for (int i=0; i<stride.length; i++) {
+         dest[i] = n / stride[i];
+         n -= dest[i]*stride[i];
+      }
+   }
+
+   public static int getStep(int dir, int[] stride) {
+      int step = stride[Dir.getAxis(dir)];
+      return Dir.isPositive(dir) ? step : -step;
+   }
+
 // --- boolean ---
 
    public static class OfBoolean {
 
    // --- fields ---
 
-      private int dim;
       private int[] limits;
-      private Object data;
+      private int[] stride;
+      private long[] data; // one bit per cell
 
    // --- construction ---
 
       public OfBoolean(int dim, int[] limits) {
-         this.dim = dim;
          this.limits = limits;
-         if (dim == 3) {
-            data = new boolean[limits[0]][limits[1]][limits[2]];
-         } else {
-            data = new boolean[limits[0]][limits[1]][limits[2]][limits[3]];
-         }
+         stride = makeStrides(limits);
+         data = new long[(DynamicArray.getCount(limits)+63) >> 6];
       }
 
    // --- accessors ---
 
+      public int index(int[] p) { return DynamicArray.index(p,stride); }
+      public int getStep(int dir) { return DynamicArray.getStep(dir,stride); }
+      public void coordinates(int[] dest, int i) { DynamicArray.coordinates(dest,i,stride); }
+      public int getCount() { return DynamicArray.getCount(limits); }
+      public int[] getLimits() { return limits; }
+
+      public boolean get(int i) {
+         return (data[i >> 6] & (1L << i)) != 0; // shift count is taken mod 64
+      }
+
+      public void set(int i, boolean b) {
+         if (b) data[i >> 6] |=  (1L << i);
+         else   data[i >> 6] &= ~(1L << i);
+      }
+
       public boolean get(int[] p) {
-         if (dim == 3) {
-            return ((boolean[][][]) data)[p[0]][p[1]][p[2]];
-         } else {
-            return ((boolean[][][][]) data)[p[0]][p[1]][p[2]][p[3]];
-         }
+         return get(index(p));
       }
 
       public void set(int[] p, boolean b) {
-         if (dim == 3) {
-            ((boolean[][][]) data)[p[0]][p[1]][p[2]] = b;
-         } else {
-            ((boolean[][][][]) data)[p[0]][p[1]][p[2]][p[3]] = b;
-         }
+         set(index(p),b);
       }
 
       public boolean inBounds(int[] p) {
          return DynamicArray.inBounds(p,limits);
       }
+
+   // --- binary form ---
+
+      public int getByteCount() {
+         return 4 + 8*data.length;
+      }
+
+      /**
+       * Write the cells as a word count followed by the words.
+       */
+      public void write(ByteBuffer buf) {
+         buf.putInt(data.length);
+         buf.asLongBuffer().put(data);
+         buf.position(buf.position() + 8*data.length);
+      }
+
+      /**
+       * @return False if the buffer doesn't hold the right number of words.
+       */
+      public boolean read(ByteBuffer buf) {
+         if (buf.remaining() < 4 || buf.getInt() != data.length || buf.remaining() < 8*data.length) return false;
+         buf.asLongBuffer().get(data);
+         buf.position(buf.position() + 8*data.length);
+         return true;
+      }
    }
 
 // --- Color ---
@@ -158,38 +231,37 @@ public class DynamicArray {
 
    // --- fields ---
 
-      private int dim;
       private int[] limits;
-      private Object data;
+      private int[] stride;
+      private Color[] data;
 
    // --- construction ---
 
       public OfColor(int dim, int[] limits) {
-         this.dim = dim;
          this.limits = limits;
-         if (dim == 3) {
-            data = new Color[limits[0]][limits[1]][limits[2]];
-         } else {
-            data = new Color[limits[0]][limits[1]][limits[2]][limits[3]];
-         }
+         stride = makeStrides(limits);
+         data = new Color[DynamicArray.getCount(limits)];
       }
 
    // --- accessors ---
 
+      public int index(int[] p) { return DynamicArray.index(p,stride); }
+      public int getStep(int dir) { return DynamicArray.getStep(dir,stride); }
+
+      public Color get(int i) {
+         return data[i];
+      }
+
+      public void set(int i, Color color) {
+         data[i] = color;
+      }
+
       public Color get(int[] p) {
-         if (dim == 3) {
-            return ((Color[][][]) data)[p[0]][p[1]][p[2]];
-         } else {
-            return ((Color[][][][]) data)[p[0]][p[1]][p[2]][p[3]];
-         }
+         return data[index(p)];
       }
 
       public void set(int[] p, Color color) {
-         if (dim == 3) {
-            ((Color[][][]) data)[p[0]][p[1]][p[2]] = color;
-         } else {
-            ((Color[][][][]) data)[p[0]][p[1]][p[2]][p[3]] = color;
-         }
+         data[index(p)] = color;
       }
 
       public boolean inBounds(int[] p) {
@@ -203,38 +275,37 @@ public class DynamicArray {
 
    // --- fields ---
 
-      private int dim;
       private int[] limits;
-      private Object data;
+      private int[] stride;
+      private byte[] data; // direction plus one, so that zero means none
 
    // --- construction ---
 
       public OfDir(int dim, int[] limits) {
-         this.dim = dim;
          this.limits = limits;
-         if (dim == 3) {
-            data = new int[limits[0]][limits[1]][limits[2]];
-         } else {
-            data = new int[limits[0]][limits[1]][limits[2]][limits[3]];
-         }
+         stride = makeStrides(limits);
+         data = new byte[DynamicArray.getCount(limits)];
       }
 
    // --- accessors ---
 
+      public int index(int[] p) { return DynamicArray.index(p,stride); }
+      public int getStep(int dir) { return DynamicArray.getStep(dir,stride); }
+
+      public int get(int i) {
+         return data[i]-1;
+      }
+
+      public void set(int i, int b) {
+         data[i] = (byte) (b+1);
+      }
+
       public int get(int[] p) {
-         if (dim == 3) {
-            return ((int[][][]) data)[p[0]][p[1]][p[2]]-1;
-         } else {
-            return ((int[][][][]) data)[p[0]][p[1]][p[2]][p[3]]-1;
-         }
+         return data[index(p)]-1;
       }
 
       public void set(int[] p, int b) {
-         if (dim == 3) {
-            ((int[][][]) data)[p[0]][p[1]][p[2]] = b+1;
-         } else {
-            ((int[][][][]) data)[p[0]][p[1]][p[2]][p[3]] = b+1;
-         }
+         data[index(p)] = (byte) (b+1);
       }
 
       public boolean inBounds(int[] p) {
@@ -3,9 +3,12 @@
  */
 
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Classes that are used to represent geometric shapes.
@@ -223,12 +226,23 @@ public class Geom {
       private double[] originNew;
       private double[] originOld;
       private double[] reg1;
+      private boolean unit; // axes are the unit matrix, as for most placed blocks
 
       public PlaceHelper(double[][] axis, double[] originNew, double[] originOld) {
          this.axis = axis;
          this.originNew = originNew;
          this.originOld = originOld;
          reg1 = new double[axis.length];
+         unit = isUnitMatrix(axis);
+      }
+
+      private static boolean isUnitMatrix(double[][] axis) {
+         for (int i=0; i<axis.length; i++) {
+            for (int j=0; j<axis[i].length; j++) {
+               if (axis[i][j] != ((i == j) ? 1 : 0)) return false;
+            }
+         }
+         return true;
       }
 
       /**
@@ -241,6 +255,10 @@ public class Geom {
       }
 
       public void placePos(double[] dest, double[] src) {
+         if (unit) { // same result, the +0 turns -0 into 0 like fromAxisCoordinates
+            for (int i=0; i<dest.length; i++) dest[i] = (src[i] - originOld[i] + 0.0) + originNew[i];
+            return;
+         }
          Vec.sub(reg1,src,originOld);
          Vec.fromAxisCoordinates(dest,reg1,axis);
          Vec.add(dest,dest,originNew);
@@ -250,6 +268,23 @@ public class Geom {
          Vec.fromAxisCoordinates(dest,src,axis);
       }
 
+      /**
+       * @return The placed direction, in a new array unless it's the same as src.
+       */
+      public double[] placeDir(double[] src) {
+         if (unit && ! hasNegativeZero(src)) return src;
+         double[] dest = new double[src.length];
+         Vec.fromAxisCoordinates(dest,src,axis);
+         return dest;
+      }
+
+      private static boolean hasNegativeZero(double[] d) {
+         for (int i=0; i<d.length; i++) {
+            if (d[i] == 0 && 1/d[i] < 0) return true;
+         }
+         return false;
+      }
+
       public void idealPos(double[] dest, double[] src) {
          Vec.sub(reg1,src,originNew);
          Vec.toAxisCoordinates(dest,reg1,axis);
@@ -262,10 +297,9 @@ public class Geom {
    public static class Shape implements ShapeInterface, Clip.BoundaryList, IDimension {
 
       public Face[] face;
-      public Subface[] subface;
       public Edge[] edge;
       public double[][] vertex;
-      public int[][] nbv;
+      Topology topology; // subfaces and neighbors, see getSubfaces and getNeighbors
       public double[] shapecenter; // for size testing; connected to radius
       public double[] aligncenter; // for alignment, snapping, and rotation
       public double radius;
@@ -275,17 +309,25 @@ public class Geom {
       public boolean noUserMove;
       public HintInterface hint;
       public Face bottomFace; // for railcars only
-
-      private Shape() {}
+      public int version; // incremented whenever the vertices move, so cached results can tell
+      boolean geometryShared; // face, vertex, shapecenter, aligncenter, and axis, see unshare
+      boolean edgesShared;
+      public static final AtomicInteger moveCount = new AtomicInteger(); // total over all shapes, so indexes can tell when to look at versions
+      // atomic because scenes are built on the load thread while the game runs,
+      // and a lost update could bring the count back to a value an index has seen
+
+      Shape() {} // for copy and IncludeCache
       public Shape(Face[] face, Edge[] edge, double[][] vertex) {
          this.face = face;
          this.edge = edge;
          this.vertex = vertex;
+         topology = new Topology();
          calculate();
          ideal = copy(); // so, the only difference right now is that the ideal has no ideal
       }
 
       public void idealize() {
+         unshareGeometry();
          Vec.unitMatrix(axis);
          ideal = null; // so new ideal won't point to old ideal
          ideal = copy();
@@ -293,6 +335,7 @@ public class Geom {
 
       public void editIdeal() {
          ideal = ideal.copy(); // no way to tell if it's shared, so we have to copy
+         ideal.unshareGeometry(); // the callers change the faces directly
       }
 
       public int getSize() { return face.length; }
@@ -306,18 +349,37 @@ public class Geom {
          return copy();
       }
 
+      /**
+       * Make a copy that shares its arrays with the original.
+       * Whichever one changes first makes its own arrays at that point,
+       * see unshare.
+       */
       public Shape copy() {
          Shape s = new Shape();
 
-         s.face = clone2(face);
-         s.subface = subface; // share
-         s.edge = clone2(edge);
-         s.vertex = clone2(vertex);
-         s.nbv = clone2(nbv);
-         s.shapecenter = clone1(shapecenter);
-         s.aligncenter = clone1(aligncenter);
+         if (hasPlatformTexture()) { // the copy has to lose it, see Face.copy
+            s.face = clone2(face);
+            s.vertex = clone2(vertex);
+            s.shapecenter = clone1(shapecenter);
+            s.aligncenter = clone1(aligncenter);
+            s.axis = clone2(axis);
+         } else {
+            s.face = face;
+            s.vertex = vertex;
+            s.shapecenter = shapecenter;
+            s.aligncenter = aligncenter;
+            s.axis = axis;
+            geometryShared = true;
+            s.geometryShared = true;
+         }
+         s.edge = edge;
+         s.topology = topology; // share, even if it isn't calculated yet
          s.radius = radius;
-         s.axis = clone2(axis);
+
+         // copies of prototypes from IncludeCache can be made on more
+         // than one thread, but that only ever sets the flags to true.
+         edgesShared = true;
+         s.edgesShared = true;
 
          s.ideal = ideal; // share ideals!  we'll make a new copy
          // whenever we do anything that needs to alter the ideal.
@@ -339,14 +401,60 @@ public class Geom {
          return noUserMove;
       }
 
+      private boolean hasPlatformTexture() {
+         for (int i=0; i<face.length; i++) {
+            CustomTexture ct = face[i].customTexture;
+            if (ct != null && ! (ct instanceof Geom.Texture)) return true;
+         }
+         return false;
+      }
+
+      /**
+       * Stop sharing arrays with other copies of the shape.
+       * The methods here take care of it, but code that writes into
+       * the arrays directly has to call this (or one of the other two) first.
+       * Note that the faces are new objects afterward.
+       */
+      public void unshare() {
+         unshareGeometry();
+         unshareEdges();
+      }
+
+      /**
+       * Stop sharing the faces and the vertices, and the centers and axes that
+       * move with them.  The edges only hold colors, so they can stay shared.
+       */
+      public void unshareGeometry() {
+         if ( ! geometryShared ) return;
+         face = clone2(face);
+         vertex = clone2(vertex);
+         shapecenter = clone1(shapecenter);
+         aligncenter = clone1(aligncenter);
+         axis = clone2(axis);
+         geometryShared = false;
+      }
+
+      public void unshareEdges() {
+         if ( ! edgesShared ) return;
+         edge = clone2(edge);
+         edgesShared = false;
+      }
+
+      private void moved() {
+         version++;
+         moveCount.incrementAndGet();
+      }
+
       public void reset() {
          // use this to avoid accumulation of FP error in trains
+         unshareGeometry();
          for (int i=0; i<face.length; i++) face[i].reset(ideal.face[i]);
          for (int i=0; i<vertex.length; i++) Vec.copy(vertex[i],ideal.vertex[i]);
          Vec.copy(shapecenter,ideal.shapecenter);
          Vec.copy(aligncenter,ideal.aligncenter);
          // radius doesn't change under these transformations
          for (int i=0; i<axis.length; i++) Vec.copy(axis[i],ideal.axis[i]);
+         moved();
       }
 
       /**
@@ -356,6 +464,7 @@ public class Geom {
          place(/* useShapeCenter = */ false);
       }
       public void place(boolean useShapeCenter) {
+         unshareGeometry();
          PlaceHelper helper = new PlaceHelper(axis,aligncenter,ideal.aligncenter);
 
          if (useShapeCenter) {
@@ -370,9 +479,11 @@ public class Geom {
          // we took care of shapecenter and aligncenter above
          // radius doesn't change under these transformations
          // axis is fixed
+         moved();
       }
 
       public void place(double[] d, double[][] a) {
+         unshareGeometry();
          Vec.copy(aligncenter,d);
          Vec.copyMatrix(axis,a);
          // note, copyMatrix uses dest size to copy,
@@ -381,25 +492,30 @@ public class Geom {
       }
 
       public void translate(double[] d) {
+         unshareGeometry();
          for (int i=0; i<face.length; i++) face[i].translate(d);
          vatranslate(vertex,d);
          Vec.add(shapecenter,shapecenter,d);
          Vec.add(aligncenter,aligncenter,d);
          // radius doesn't change
          // the axes don't change
+         moved();
       }
 
       public void translateFrame(double[] d) {
+         unshareGeometry();
          // do aligncenter and axes now, update the rest later
          Vec.add(aligncenter,aligncenter,d);
       }
 
       public void scale(double[] d) {
+         unshareGeometry();
          for (int i=0; i<face.length; i++) face[i].scale(d);
          vascale(vertex,d);
          Vec.scaleMultiCo(shapecenter,shapecenter,d);
          Vec.scaleMultiCo(aligncenter,aligncenter,d);
          if (isUniform(d)) radius *= d[0]; else calcRadius();
+         moved();
 
          // what about the axes?  in general they're not well defined,
          // but it doesn't matter here.  scaling is a change of shape,
@@ -419,6 +535,7 @@ public class Geom {
       }
 
       public void setAlignCenter(double[] aligncenter) {
+         unshareGeometry();
          Vec.copy(this.aligncenter,aligncenter);
 
          // we have to make a copy of the ideal anyway since we can't
@@ -429,6 +546,7 @@ public class Geom {
       }
 
       public void rotate(int dir1, int dir2, double theta, double[] origin) {
+         unshareGeometry();
          if (origin == null) origin = clone1(getAlignCenter());
          // since rotations are orthogonal, covariant vs. contravariant doesn't matter
          for (int i=0; i<face.length; i++) face[i].rotate(dir1,dir2,theta,origin);
@@ -438,10 +556,12 @@ public class Geom {
          // radius doesn't change
          for (int i=0; i<axis.length; i++) Vec.rotateAbsoluteAngleDir(axis[i],axis[i],dir1,dir2,theta);
             // no origin shift for axes!
+         moved();
       }
 
       public void rotateFrame(int dir1, int dir2, double theta, double[] origin) {
          // do aligncenter and axes now, update the rest later
+         unshareGeometry();
          if (origin == null) origin = clone1(getAlignCenter());
          vrotate(aligncenter,dir1,dir2,theta,origin);
          for (int i=0; i<axis.length; i++) Vec.rotateAbsoluteAngleDir(axis[i],axis[i],dir1,dir2,theta);
@@ -457,13 +577,14 @@ public class Geom {
       }
 
       private void glassImpl() {
+         unshareGeometry();
          for (int i=0; i<face.length; i++) face[i].normal = null;
       }
 
       public void calculate() {
          calcCenters();
-         calcSubfaces();
-         calcNeighbors();
+         // subfaces and neighbors wait until someone asks for them.
+         // lots of shapes are only prototypes or steps along the way.
 
          int dim = getDimension();
 
@@ -491,7 +612,34 @@ public class Geom {
       }
 
       public void calcCenters() {
-         for (int i=0; i<face.length; i++) calcCenter(face[i]);
+         unshareGeometry();
+
+         // the same as calling calcCenter for every face, but without
+         // running through all the vertices each time, which for the
+         // big polytopes was most of the cost of building the shape.
+
+         int[] mark = new int[vertex.length]; // last face that used the vertex, plus one
+         int[] list = new int[vertex.length];
+
+         for (int i=0; i<face.length; i++) {
+            Face f = face[i];
+
+            int n = 0;
+            for (int j=0; j<f.ie.length; j++) {
+               Edge e = edge[f.ie[j]];
+               if (mark[e.iv1] != i+1) { mark[e.iv1] = i+1; list[n++] = e.iv1; }
+               if (mark[e.iv2] != i+1) { mark[e.iv2] = i+1; list[n++] = e.iv2; }
+            }
+            if (n == 0) { calcCenter(f); continue; } // fails the same way
+
+            Arrays.sort(list,0,n); // add in the same order so the sums are the same
+            double[] d = clone1(vertex[list[0]]);
+            for (int k=1; k<n; k++) Vec.add(d,d,vertex[list[k]]);
+
+            Vec.scale(d,d,1/(double) n);
+            f.center = d;
+            f.calcThreshold();
+         }
       }
 
       public boolean[] getFaceVertices(Face f) {
@@ -565,73 +713,122 @@ public class Geom {
          return vertex[0].length; // ugly but it will do for now
       }
 
+      /**
+       * @return The subfaces.  Not a copy!  They're shared with copies of the shape.
+       */
+      public Subface[] getSubfaces() {
+         Subface[] subface = topology.subface;
+         if (subface == null) {
+            calcSubfaces();
+            subface = topology.subface;
+         }
+         return subface;
+      }
+
+      /**
+       * @return The neighbors of each vertex, in the order of the edges.
+       *         Not a copy!  They're shared with copies of the shape.
+       */
+      public int[][] getNeighbors() {
+         int[][] nbv = topology.nbv;
+         if (nbv == null) {
+            calcNeighbors();
+            nbv = topology.nbv;
+         }
+         return nbv;
+      }
+
       public void calcSubfaces() {
 
          // in 3D, we get a subface when two faces have an edge in common.
          // in 4D, we get a subface when two faces have two or more edges
          // in common.
 
-         LinkedList list = new LinkedList();
+         // instead of comparing every pair of faces, make an index
+         // from edges to faces and count up the edges that each face
+         // has in common with the ones after it.  the subfaces come out
+         // in the same order as with the pairwise comparison.
+
          int nGoal = (getDimension() == 3) ? 1 : 2; // only place we test dimension!
 
+         int[] start = new int[edge.length+1];
+         for (int i=0; i<face.length; i++) {
+            int[] ie = face[i].ie;
+            for (int j=0; j<ie.length; j++) start[ie[j]+1]++;
+         }
+         for (int e=0; e<edge.length; e++) start[e+1] += start[e];
+
+         int[] index = new int[start[edge.length]]; // faces for each edge, in increasing order
+         int[] fill = new int[edge.length];
+         System.arraycopy(start,0,fill,0,edge.length);
+         for (int i=0; i<face.length; i++) {
+            int[] ie = face[i].ie;
+            for (int j=0; j<ie.length; j++) index[fill[ie[j]]++] = i;
+         }
+
+         LinkedList list = new LinkedList();
+         int[] count = new int[face.length];
+         int[] touched = new int[face.length];
+
          for (int i1=0; i1<face.length-1; i1++) {
-            for (int i2=i1+1; i2<face.length; i2++) {
-               if (countEdgesInCommon(face[i1].ie,face[i2].ie) >= nGoal) {
+            int ntouched = 0;
+            int[] ie = face[i1].ie;
+            for (int j=0; j<ie.length; j++) {
+               int e = ie[j];
+               for (int k=start[e]; k<start[e+1]; k++) {
+                  int i2 = index[k];
+                  if (i2 <= i1) continue;
+                  if (count[i2]++ == 0) touched[ntouched++] = i2;
+               }
+            }
+            Arrays.sort(touched,0,ntouched);
+            for (int k=0; k<ntouched; k++) {
+               int i2 = touched[k];
+               if (count[i2] >= nGoal) {
                   Subface sf = new Subface();
                   sf.if1 = i1;
                   sf.if2 = i2;
                   list.add(sf);
                }
+               count[i2] = 0;
             }
          }
 
-         subface = (Subface[]) list.toArray(new Subface[list.size()]);
-      }
-
-      public int countEdgesInCommon(int[] ie1, int[] ie2) {
-
-         // if we knew the arrays were sorted we could do
-         // some kind of fast walk-through, but since the
-         // calculation only happens once it hardly matters.
-
-         int n = 0;
-         for (int i1=0; i1<ie1.length; i1++) {
-            for (int i2=0; i2<ie2.length; i2++) {
-               if (ie1[i1] == ie2[i2]) n++;
-            }
-         }
-         return n;
+         topology.subface = (Subface[]) list.toArray(new Subface[list.size()]);
       }
 
       public void calcNeighbors() {
-         LinkedList[] list = new LinkedList[vertex.length];
-         for (int i = 0; i < vertex.length; i++) {
-            list[i] = new LinkedList();
-         }
+         int[] n = new int[vertex.length];
          for (int i = 0; i < edge.length; i++) {
-            list[edge[i].iv1].add(edge[i].iv2);
-            list[edge[i].iv2].add(edge[i].iv1);
+            n[edge[i].iv1]++;
+            n[edge[i].iv2]++;
          }
-         nbv = new int[vertex.length][];
+         int[][] nbv = new int[vertex.length][];
          for (int i = 0; i < vertex.length; i++) {
-            nbv[i] = new int[list[i].size()];
-            for (int j = 0; j < nbv[i].length; j++) {
-               nbv[i][j] = (int) list[i].get(j);
-            }
+            nbv[i] = new int[n[i]];
+            n[i] = 0;
          }
+         for (int i = 0; i < edge.length; i++) { // same order as before
+            int iv1 = edge[i].iv1;
+            int iv2 = edge[i].iv2;
+            nbv[iv1][n[iv1]++] = iv2;
+            nbv[iv2][n[iv2]++] = iv1;
+         }
+         topology.nbv = nbv;
       }
 
       public void setShapeColor(Color color) {
+         unshareGeometry();
          for (int i=0; i<face.length; i++) {
             face[i].color = color;
          }
-         for (int i=0; i<edge.length; i++) { // a bit faster than updateEdgeColor per face
-            edge[i].color = color;
-         }
+         edge = topology.getEdges(edge,color); // shared by all the copies that have this color
+         edgesShared = true;
       }
 
       public int setFaceColor(int j, Color color, boolean xor) {
          if (j < face.length) {
+            unshare();
             if (xor && color != null && color.equals(face[j].color)) color = null;
             face[j].color = color;
             updateEdgeColor(face[j]); // resolve conflicts by overwriting
@@ -641,6 +838,7 @@ public class Geom {
 
       public int setEdgeColor(int j, Color color) {
          if (j < edge.length) {
+            unshareEdges();
             edge[j].color = color;
          }
          return j - edge.length;
@@ -648,6 +846,7 @@ public class Geom {
 
       public int setFaceTexture(int j, Texture texture, int mode, double[] value) {
          if (j < face.length) {
+            unshareGeometry();
 
             if (    texture != null
                  && mode != Vec.PROJ_NONE
@@ -680,6 +879,7 @@ public class Geom {
       }
 
       public void updateEdgeColor(Face f) {
+         unshareEdges();
          for (int i=0; i<f.ie.length; i++) {
             edge[f.ie[i]].color = f.color;
          }
@@ -916,21 +1116,89 @@ public class Geom {
       private int[] aiv;
       private int   alen;
 
+      // vertex hash.  each vertex goes in the bucket for its grid cell,
+      // and the buckets are chains through vnext.  the cells are twice
+      // epsilon wide, so a match can only be in the same cell or next to it.
+      private int[] vhead; // -1 means empty
+      private int[] vnext;
+      private long[] vlo; // cell range scratch
+      private long[] vhi;
+      private long[] vcell;
+
+      private static final double EPSILON = 0.001;
+      private static final double CELL = 2*EPSILON;
+      private static final double SLACK = 1.001; // so rounding can't skip a cell
+
+      // edge hash, open addressing with linear probing.
+      // the key is the vertex pair, smaller index first.
+      private long[] ekey;
+      private int[] eindex; // -1 means empty slot
+
       public Builder(boolean v, boolean e, boolean f, int amax) {
-         if (v) vnew = new Vector();
-         if (e) enew = new Vector();
+         if (v) { vnew = new Vector(); allocateVertexHash(16); }
+         if (e) { enew = new Vector(); allocateEdgeHash(16); }
          if (f) fnew = new Vector();
          if (amax != -1) aiv = new int[amax];
       }
 
    // vertex functions
 
+      /**
+       * @return The lowest index of a vertex within epsilon of v in every coordinate, or -1.
+       */
       private int indexOf(double[] v) {
-         final double epsilon = 0.001;
-         for (int i=0; i<vnew.size(); i++) {
-            if (Vec.approximatelyEquals((double[]) vnew.get(i),v,epsilon)) return i;
+         int dim = v.length;
+         if (vcell == null || vcell.length != dim) {
+            vlo = new long[dim];
+            vhi = new long[dim];
+            vcell = new long[dim];
          }
-         return -1;
+         for (int a=0; a<dim; a++) {
+            vlo[a] = toCell(v[a] - SLACK*EPSILON);
+            vhi[a] = toCell(v[a] + SLACK*EPSILON);
+            vcell[a] = vlo[a];
+         }
+
+         int index = -1;
+         while (true) {
+            for (int i = vhead[bucket(vcell)]; i != -1; i = vnext[i]) {
+               if (index != -1 && i > index) continue;
+               if (Vec.approximatelyEquals((double[]) vnew.get(i),v,EPSILON)) index = i;
+            }
+
+            // step to the next cell in the range, like an odometer
+            int a = 0;
+            for ( ; a<dim; a++) {
+               if (vcell[a] < vhi[a]) { vcell[a]++; break; }
+               vcell[a] = vlo[a];
+            }
+            if (a == dim) break;
+         }
+         return index;
+      }
+
+      private static long toCell(double x) {
+         return (long) Math.floor(x/CELL);
+      }
+
+      private int bucket(long[] c) {
+         long h = 0;
+         for (int a=0; a<c.length; a++) h = (h + c[a]) * 0x9E3779B97F4A7C15L;
+         return (int) (h >>> 40) & (vhead.length-1);
+      }
+
+      private void allocateVertexHash(int capacity) {
+         vhead = new int[capacity];
+         for (int i=0; i<capacity; i++) vhead[i] = -1;
+         vnext = new int[capacity]; // at least twice the number of vertices
+      }
+
+      private void hashVertex(int index, double[] v) {
+         if (vcell == null || vcell.length != v.length) vcell = new long[v.length];
+         for (int a=0; a<v.length; a++) vcell[a] = toCell(v[a]);
+         int h = bucket(vcell);
+         vnext[index] = vhead[h];
+         vhead[h] = index;
       }
 
       public int addVertex(double[] v) {
@@ -938,6 +1206,12 @@ public class Geom {
          if (index == -1) {
             index = vnew.size();
             vnew.add(v);
+            if (2*vnew.size() > vhead.length) { // rehash everything
+               allocateVertexHash(2*vhead.length);
+               for (int i=0; i<vnew.size(); i++) hashVertex(i,(double[]) vnew.get(i));
+            } else {
+               hashVertex(index,v);
+            }
          }
          return index;
       }
@@ -948,30 +1222,59 @@ public class Geom {
 
    // edge functions (that don't call vertex functions at all)
 
-      private int indexOf(int iv1, int iv2) {
-         for (int i=0; i<enew.size(); i++) {
-            if (((Edge) enew.get(i)).sameVertices(iv1,iv2)) return i;
-            // can't do anything about the color;
-            // it's the same edge, one color has to win out.
-         }
-         return -1;
+      private static long toKey(int iv1, int iv2) {
+         if (iv1 > iv2) { int temp = iv1; iv1 = iv2; iv2 = temp; }
+         return (((long) iv1) << 32) | (iv2 & 0xFFFFFFFFL);
+      }
+
+      private int findEdge(long k) {
+         int mask = ekey.length-1;
+         int h = (int) ((k * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+         while (eindex[h] != -1 && ekey[h] != k) h = (h+1) & mask;
+         return h;
+      }
+
+      private void allocateEdgeHash(int capacity) {
+         ekey = new long[capacity];
+         eindex = new int[capacity];
+         for (int i=0; i<capacity; i++) eindex[i] = -1;
       }
 
       public int addEdge(int iv1, int iv2) {
-         int index = indexOf(iv1,iv2);
-         if (index == -1) {
-            index = enew.size();
-            enew.add(new Edge(iv1,iv2));
-         }
-         return index;
+         return addEdge(iv1,iv2,null);
       }
 
       public int addEdge(Edge e) {
-         int index = indexOf(e.iv1,e.iv2);
-         if (index == -1) {
-            index = enew.size();
-            enew.add(e);
+         return addEdge(e.iv1,e.iv2,e);
+      }
+
+      /**
+       * @param e The edge to add, or null to make one.
+       */
+      private int addEdge(int iv1, int iv2, Edge e) {
+         long k = toKey(iv1,iv2);
+         int h = findEdge(k);
+         if (eindex[h] != -1) return eindex[h];
+         // can't do anything about the color;
+         // it's the same edge, one color has to win out.
+
+         int index = enew.size();
+         enew.add((e != null) ? e : new Edge(iv1,iv2));
+
+         if (2*enew.size() > ekey.length) {
+            long[] keyOld = ekey;
+            int[] indexOld = eindex;
+            allocateEdgeHash(2*keyOld.length);
+            for (int i=0; i<keyOld.length; i++) {
+               if (indexOld[i] == -1) continue;
+               int h2 = findEdge(keyOld[i]);
+               ekey[h2] = keyOld[i];
+               eindex[h2] = indexOld[i];
+            }
+            h = findEdge(k);
          }
+         ekey[h] = k;
+         eindex[h] = index;
          return index;
       }
 
@@ -1050,6 +1353,7 @@ public class Geom {
       public double[] center; // same as vertex, but we can compute them.
       public double[] normal; // different from vertex under translation;
       //                      // direction can be computed but sign is a pain, not worth it.
+      //                      // never changed in place, so copies and ideals can share it.
       public double threshold;
       public Color color;
       public CustomTexture customTexture;
@@ -1065,7 +1369,7 @@ public class Geom {
          Face f = new Face();
          f.ie = ie; // share
          f.center = clone1(center); // don't copy before adding to shape
-         f.normal = (normal != null) ? clone1(normal) : null;
+         f.normal = normal; // share
          f.threshold = threshold;
          f.color = color;
          if (customTexture instanceof Geom.Texture) {
@@ -1096,11 +1400,7 @@ public class Geom {
 
       public void reset(Face ideal) {
          Vec.copy(center,ideal.center);
-         if (ideal.normal != null) {
-            Vec.copy(normal,ideal.normal);
-         } else {
-            normal = null;
-         }
+         normal = ideal.normal; // share
          threshold = ideal.threshold;
          if (customTexture instanceof Geom.Texture) {
             ((Geom.Texture) customTexture).reset((Geom.Texture) ideal.customTexture);
@@ -1109,11 +1409,7 @@ public class Geom {
 
       public void place(Face ideal, PlaceHelper helper) {
          helper.placePos(center,ideal.center);
-         if (ideal.normal != null) {
-            helper.placeDir(normal,ideal.normal);
-         } else {
-            normal = null;
-         }
+         normal = (ideal.normal != null) ? helper.placeDir(ideal.normal) : null;
          calcThreshold(); // can't transform it
          if (customTexture instanceof Geom.Texture) {
             ((Geom.Texture) customTexture).place((Geom.Texture) ideal.customTexture,helper);
@@ -1130,7 +1426,11 @@ public class Geom {
 
       public void scale(double[] d) {
          Vec.scaleMultiCo(center,center,d);
-         if (normal != null) Vec.scaleMultiContra(normal,normal,d);
+         if (normal != null) {
+            double[] n = new double[normal.length];
+            Vec.scaleMultiContra(n,normal,d);
+            normal = n;
+         }
          calcThreshold();
          if (customTexture instanceof Geom.Texture) {
             ((Geom.Texture) customTexture).scale(d);
@@ -1139,8 +1439,12 @@ public class Geom {
 
       public void rotate(int dir1, int dir2, double theta, double[] origin) {
          vrotate(center,dir1,dir2,theta,origin);
-         if (normal != null) Vec.rotateAbsoluteAngleDir(normal,normal,dir1,dir2,theta);
+         if (normal != null) {
+            double[] n = new double[normal.length];
+            Vec.rotateAbsoluteAngleDir(n,normal,dir1,dir2,theta);
+            normal = n;
             // no origin shift for normals!
+         }
          calcThreshold(); // threshold changes if origin isn't coordinate origin
          if (customTexture instanceof Geom.Texture) {
             ((Geom.Texture) customTexture).rotate(dir1,dir2,theta,origin);
@@ -1148,6 +1452,41 @@ public class Geom {
       }
    }
 
+// --- topology ---
+
+   /**
+    * The things about a shape that depend only on how the faces, edges,
+    * and vertices are connected, which never changes once the shape is built.
+    * They're calculated the first time they're needed, and then shared with
+    * all the copies of the shape.  Prototypes from IncludeCache can be used
+    * by more than one thread at once, hence the volatile; if two threads
+    * do the same calculation, no harm done, they get the same answer.
+    * Copies that are all one color also share their edges through here,
+    * so a scene full of blocks in a few colors only has a few edge arrays.
+    */
+   static class Topology {
+
+      public volatile Subface[] subface;
+      public volatile int[][] nbv; // neighbors of each vertex
+      private HashMap colored; // edges all in one color, by color
+
+      /**
+       * @param edge The edges of some shape with this topology.
+       * @return The same edges, all in the given color.  Not a copy!
+       *         Anything that changes one has to unshare first.
+       */
+      public synchronized Edge[] getEdges(Edge[] edge, Color color) {
+         if (colored == null) colored = new HashMap();
+         Edge[] e = (Edge[]) colored.get(color);
+         if (e == null) {
+            e = clone2(edge);
+            for (int i=0; i<e.length; i++) e[i].color = color;
+            colored.put(color,e);
+         }
+         return e;
+      }
+   }
+
 // --- subface ---
 
    // in 3D subfaces are the same things as edges, but it doesn't matter
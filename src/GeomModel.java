@@ -3,12 +3,14 @@
  */
 
 import java.awt.Color;
-import java.io.File;
-import java.io.FileWriter;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A model that lets the user move around geometric shapes.
@@ -24,8 +26,11 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
    private boolean[] texture;
    protected LineBuffer buf;
    protected Clip.Draw[] clipUnits;
-   private boolean[][] inFront;
-   private Geom.Separator[][] separators;
+   private SphereTree tree;
+   private ShapeGrid grid; // for canMove
+   private int[][] front; // for each shape, indices of shapes in front of it
+   private int[] nfront;
+   private SeparatorCache separators;
    private boolean useEdgeColor;
    protected Geom.Shape selectedShape;
    private int[] axisDirection; // direction of each axis, chosen when shape selected
@@ -35,14 +40,31 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
    private Struct.DrawInfo drawInfo;
    private Struct.ViewInfo viewInfo;
    protected Clip.GJKTester gjk;
-   File file;
-	private static String ls = System.getProperty("line.separator");
 
    protected double[] origin;
    protected double[] reg1;
    protected double[] reg2;
    protected Clip.Result clipResult;
    private IDraw currentDraw;
+   private Worker main; // draws the shapes in sequential mode
+   private Worker[] workers; // one per chunk in parallel mode
+   private Picker picker;
+
+   /**
+    * Draw the shapes on several threads.  The output is the same either way,
+    * since each thread has its own buffer and the buffers are merged in order.
+    * Set with -DparallelRender=true, or directly.
+    */
+   public static boolean parallelRender = Boolean.getBoolean("parallelRender");
+   private static final int PARALLEL_MIN = 16; // shapes, below this it isn't worth it
+
+   /**
+    * Find the shape you're pointing at by testing every shape
+    * instead of walking the sphere tree.  The answer is the same either way,
+    * this is just for comparison.  Set with -DlinearPick=true, or directly.
+    */
+   public static boolean linearPick = Boolean.getBoolean("linearPick");
+   private static final double PICK_DISTANCE = 10000;
 
    private Vector availableColors;
    private Vector availableShapes;
@@ -64,14 +86,20 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
 
       this.dim = dim;
       this.shapes = shapes;
+      for (int i=0; i<shapes.length; i++) {
+         if (shapes[i] != null) shapes[i].unshareGeometry();
+         // the faces have runtime fields, so shapes in play can't share them
+      }
       scenery = new Vector();
       this.texture = new boolean[10];
       // we'll receive a setTexture call later
       // buf is set shortly after construction
       clipUnits = new Clip.Draw[shapes.length];
       for (int i=0; i<shapes.length; i++) clipUnits[i] = new Clip.Draw(dim);
-      inFront = new boolean[shapes.length][shapes.length];
-      separators = new Geom.Separator[shapes.length][shapes.length];
+      tree = new SphereTree(dim);
+      grid = new ShapeGrid(dim);
+      allocateFront(shapes.length);
+      separators = new SeparatorCache();
       useEdgeColor = (drawInfo != null) ? drawInfo.useEdgeColor : true;
       selectedShape = null;
       axisDirection = new int[dim];
@@ -81,12 +109,12 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       this.drawInfo = drawInfo;
       this.viewInfo = viewInfo;
       gjk = new Clip.GJKTester(dim);
-      file = new File("../separateLog.txt");
 
       origin = new double[dim];
       reg1 = new double[dim];
       reg2 = new double[dim];
       clipResult = new Clip.Result();
+      picker = new Picker();
 
       paintColor = Color.red; // annoying to have to set up every time
    }
@@ -136,76 +164,101 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
    }
 
    private void clearAllSeparators() {
-      // not worth checking for removed shapes
-      for (int i=0; i<shapes.length-1; i++) {
-         for (int j=i+1; j<shapes.length; j++) {
-            separators[i][j] = null;
-         }
-      }
+      separators.clear();
    }
 
    protected void clearSeparators(int i) {
-      // not worth checking for removed shapes
-      for (int j=0;   j<i;             j++) separators[j][i] = null;
-      for (int j=i+1; j<shapes.length; j++) separators[i][j] = null;
+      separators.clear(i);
+   }
+
+   /**
+    * Put a shape into a slot of the shape table, or null to empty it.
+    * Use this rather than assigning directly so the grid can keep up.
+    */
+   protected void setShape(int i, Geom.Shape shape) {
+      if (shape != null) shape.unshareGeometry();
+      shapes[i] = shape;
+      grid.update(shapes,i);
+   }
+
+   private void allocateFront(int len) {
+      front = new int[len][];
+      nfront = new int[len];
+   }
+
+   private void addFront(int i, int h) {
+      int[] f = front[i];
+      if (f == null) {
+         f = front[i] = new int[4];
+      } else if (nfront[i] == f.length) {
+         int[] temp = new int[2*f.length];
+         System.arraycopy(f,0,temp,0,nfront[i]);
+         f = front[i] = temp;
+      }
+      f[nfront[i]++] = h;
    }
 
    private void calcInFront() {
-      for (int i=0; i<shapes.length-1; i++) {
+      if (front.length != shapes.length) allocateFront(shapes.length);
+      for (int i=0; i<shapes.length; i++) nfront[i] = 0;
+
+      // only pairs that overlap as seen from the origin can be in front
+      // of one another, and the sphere tree finds those without having
+      // to look at every pair.  the rest would produce clip units that
+      // never clip anything, so leaving them out doesn't change the image.
+
+      tree.sync(shapes);
+      int npair = tree.findViewPairs(origin);
+      int[] pair = tree.getPairs();
+
+      for (int k=0; k<npair; k++) {
+         int i = pair[2*k  ];
+         int j = pair[2*k+1];
          Geom.Shape s1 = shapes[i];
-         if (s1 == null) continue;
-         for (int j=i+1; j<shapes.length; j++) {
-            Geom.Shape s2 = shapes[j];
-            if (s2 == null) continue;
-
-            // prefer dynamic separation even when we know a static
-            // separator because dynamic ones are better at finding
-            // the desired value NO_FRONT.
-            int result = Clip.dynamicSeparate(s1,s2,origin,reg1,reg2);
-            if (result == Geom.Separator.UNKNOWN) {
-               Geom.Separator sep;
-
-               if (isMobile(s1) || isMobile(s2)) {
-                  sep = separate(s1, s2, i, j);//Clip.staticSeparate(s1,s2,/* any = */ false);
-                  // don't remember the separator
-               } else {
-                  sep = separators[i][j];
-                  if (sep == null) {
-                     sep = separate(s1, s2, i, j);//Clip.staticSeparate(s1,s2,/* any = */ false);
-                     separators[i][j] = sep;
-                  }
-               }
-
-               result = sep.apply(origin);
+         Geom.Shape s2 = shapes[j];
+
+         // prefer dynamic separation even when we know a static
+         // separator because dynamic ones are better at finding
+         // the desired value NO_FRONT.
+         int result = Clip.dynamicSeparate(s1,s2,origin,reg1,reg2);
+         if (result == Geom.Separator.UNKNOWN) {
+
+            // the cache knows when shapes have moved, so mobile shapes
+            // only cost a new separator on frames where they actually move
+            Geom.Separator sep = separators.get(i,j,s1,s2);
+            if (sep == null) {
+               sep = separate(s1, s2, i, j);//Clip.staticSeparate(s1,s2,/* any = */ false);
+               separators.put(i,j,s1,s2,sep);
             }
 
-            inFront[i][j] = (result == Geom.Separator.S1_FRONT);
-            inFront[j][i] = (result == Geom.Separator.S2_FRONT);
+            result = sep.apply(origin);
          }
+
+         if      (result == Geom.Separator.S1_FRONT) addFront(j,i);
+         else if (result == Geom.Separator.S2_FRONT) addFront(i,j);
       }
-      // note that in general inFront is not transitive.  with long blocks
+
+      // keep the clip chains in index order, same as a full scan would produce
+      for (int i=0; i<shapes.length; i++) {
+         if (nfront[i] > 1) Arrays.sort(front[i],0,nfront[i]);
+      }
+      // note that in general "in front" is not transitive.  with long blocks
       // you can easily construct cycles where one is in front of the next
       // all the way around.
    }
 
    private Geom.Separator separate(Geom.Shape s1, Geom.Shape s2, int i1, int i2) {
+      // the old separator for the pair is out of date, so write over it.
+      // everything in the cache comes from gjk, so the normals aren't shared.
+      Geom.NormalSeparator spare = separators.getSpare(i1, i2);
+      if ( ! SeparateLog.isEnabled() ) return gjk.separate(s1, s2, spare);
       long time = System.nanoTime();
-      Geom.Separator sep = gjk.separate(s1, s2);
+      Geom.Separator sep = gjk.separate(s1, s2, spare);
       time = System.nanoTime() - time;
-      try {
-         FileWriter w = new FileWriter(file, true);
-         w.write("shape "+i1+" ("+s1.vertex.length+" vertices)"+ls);
-         w.write("shape "+i2+" ("+s2.vertex.length+" vertices)"+ls);
-         w.write(time+ls+ls);
-         w.close();
-      } catch (Exception e) {System.out.println(e);}
+      SeparateLog.record(i1, i2, s1.vertex.length, s2.vertex.length, time);
       return sep;
    }
 
-   private boolean isMobile(Geom.Shape shape) {
-      return (shape.systemMove || shape.noUserMove || shape == selectedShape);
-   }
-
    protected int indexOf(Geom.Shape shape) {
       // not worth checking for removed shapes
       for (int i=0; i<shapes.length; i++) {
@@ -215,7 +268,8 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
    }
 
    private void mobilize(Geom.Shape shape) {
-      // clear separators, we'll be computing every cycle for now
+      // clear separators.  the cache would notice the motion anyway,
+      // but there's no sense keeping entries that are about to go stale.
       clearSeparators(indexOf(shape));
    }
 
@@ -276,36 +330,18 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
 
    protected Geom.Shape findShape(double[] origin, double[] viewAxis) {
 
-      Vec.addScaled(reg2,origin,viewAxis,10000); // infinity
-      double dMin = 1;
-      Geom.Shape shapeMin = null;
+      Vec.addScaled(reg2,origin,viewAxis,PICK_DISTANCE); // infinity
+      picker.begin(origin,viewAxis);
 
-      for (int i=0; i<shapes.length; i++) {
-         Geom.Shape shape = shapes[i];
-         if (shape == null) continue;
-         if (Clip.closestApproach(shape.shapecenter,origin,viewAxis,reg1) <= shape.radius*shape.radius) { // could be a hit
-            Clip.clip(origin,reg2,shape,clipResult);
-            if ( ! invertNormals ) {
-               if ((clipResult.clip & Clip.KEEP_A) != 0) { // is a hit
-                  if (clipResult.a < dMin) {
-                     dMin = clipResult.a;
-                     shapeMin = shape;
-                     faceNumber = clipResult.ia; // for paint
-                  }
-               }
-            } else {
-               if ((clipResult.clip & Clip.KEEP_B) != 0) {
-                  if (clipResult.b < dMin) {
-                     dMin = clipResult.b;
-                     shapeMin = shape;
-                     faceNumber = clipResult.ib;
-                  }
-               }
-            }
-         }
+      if (linearPick) {
+         for (int i=0; i<shapes.length; i++) picker.test(i);
+      } else {
+         tree.sync(shapes);
+         tree.findRay(origin,viewAxis,PICK_DISTANCE,picker);
       }
 
-      return shapeMin;
+      if (picker.shapeMin != null) faceNumber = picker.faceMin; // for paint
+      return picker.shapeMin;
    }
 
    /**
@@ -375,22 +411,14 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       System.arraycopy(clipUnits,0,clipUnitsNew,0,shapes.length);
       for (int i=shapes.length; i<len; i++) clipUnitsNew[i] = new Clip.Draw(dim);
 
-      boolean[][] inFrontNew = new boolean[len][len];
-      // just a temporary register, no need to copy anything
-
-      Geom.Separator[][] separatorsNew = new Geom.Separator[len][len];
-      for (int i=0; i<shapes.length-1; i++) {
-         for (int j=i+1; j<shapes.length; j++) {
-            separatorsNew[i][j] = separators[i][j];
-         }
-      }
-      // the rest start null
+      // the front lists are just temporary registers, no need to copy anything.
+      // separators are keyed by index, so the cache carries over as is.
+      // the grid will see the new table and rebuild itself.
 
       // no real need to wait until end, but it's good form
       shapes = shapesNew;
       clipUnits = clipUnitsNew;
-      inFront = inFrontNew;
-      separators = separatorsNew;
+      allocateFront(len);
    }
 
    private static Object pickFrom(Vector available) {
@@ -446,7 +474,7 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       for (int i=0; i<quantity; i++) {
          Geom.Shape shape = createShape();
          index = findSlot(index);
-         shapes[index++] = shape; // increment to avoid re-scanning the used slot
+         setShape(index++,shape); // increment to avoid re-scanning the used slot
          todo.add(shape);
       }
 
@@ -471,9 +499,9 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       // we do want to release some references though.
 
       int i = indexOf(shape);
-      shapes[i] = null;
+      setShape(i,null);
       clipUnits[i].setBoundaries(null);
-      // inFront, no change
+      // front lists, no change
       clearSeparators(i);
    }
 
@@ -597,6 +625,7 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
    }
 
    public Align align() {
+      selectedShape.unshareGeometry(); // the align writes into the arrays
       return new Align(Align.ROTATE_THEN_TRANSLATE,selectedShape.aligncenter,selectedShape.axis);
    }
 
@@ -728,7 +757,14 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       }
       // I once got to negative y by aligning while near the floor
 
-      for (int i=0; i<shapes.length; i++) {
+      // only test shapes near the motion.  the candidates come back
+      // in increasing order, so shapeNumber is the same as with a full scan.
+      grid.sync(shapes);
+      int n = grid.findCandidates(p1,p2);
+      int[] candidate = grid.getResult();
+
+      for (int k=0; k<n; k++) {
+         int i = candidate[k];
          Geom.Shape shape = shapes[i];
          if (shape == null) continue;
 
@@ -780,10 +816,14 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       // calcViewBoundaries is expensive, but we always need the boundaries
       // to draw the scenery correctly
       currentDraw = buf;
+      int count = 0;
+      boolean threadSafe = true;
       for (int i=0; i<shapes.length; i++) {
          if (shapes[i] == null) continue;
+         count++;
+         if (parallelRender && ! isThreadSafe(shapes[i])) threadSafe = false;
          calcVisShape(shapes[i]);
-         clipUnits[i].setBoundaries(Clip.calcViewBoundaries(origin,shapes[i]));
+         clipUnits[i].setViewBoundaries(origin,shapes[i]);
          currentDraw = clipUnits[i].chain(currentDraw); // set up for floor drawing
       }
 
@@ -794,15 +834,46 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
 
       calcInFront();
 
-      for (int i=0; i<shapes.length; i++) {
-         if (shapes[i] == null) continue;
-         currentDraw = buf;
-         for (int h=0; h<shapes.length; h++) {
-            if (shapes[h] == null) continue;
-            if (inFront[h][i]) currentDraw = clipUnits[h].chain(currentDraw);
+      if (parallelRender && count >= PARALLEL_MIN && threadSafe) {
+         drawParallel();
+      } else {
+         if (main == null) main = new Worker();
+         main.out = buf;
+         main.draw(0,shapes.length);
+      }
+   }
+
+   private void drawParallel() {
+      int n = Math.min(4*ForkJoinPool.getCommonPoolParallelism(),shapes.length);
+      if (workers == null || workers.length != n) {
+         workers = new Worker[n];
+         for (int j=0; j<n; j++) {
+            workers[j] = new Worker();
+            workers[j].out = new LineBuffer(dim);
          }
-         drawShape(shapes[i]);
       }
+
+      // contiguous ranges, so that merging in order gives the sequential result
+      for (int j=0; j<n; j++) {
+         workers[j].lo = (int) ((long) shapes.length *  j    / n);
+         workers[j].hi = (int) ((long) shapes.length * (j+1) / n);
+         workers[j].reinitialize();
+      }
+      ForkJoinTask.invokeAll(workers);
+
+      for (int j=0; j<n; j++) buf.append(workers[j].out);
+   }
+
+   /**
+    * @return False if some face has a custom texture that draws through shared state.
+    * The standard textures only use their arguments.
+    */
+   private static boolean isThreadSafe(Geom.Shape shape) {
+      for (int i=0; i<shape.face.length; i++) {
+         Geom.CustomTexture ct = shape.face[i].customTexture;
+         if (ct != null && ! (ct instanceof Geom.Texture)) return false;
+      }
+      return true;
    }
 
    private void calcVisShape(Geom.Shape shape) {
@@ -824,59 +895,152 @@ public class GeomModel implements IModel, IKeysNew, IMove, ISelectShape {
       }
    }
 
-   private void drawShape(Geom.Shape shape) {
-      for (int i=0; i<shape.face.length; i++) drawFace(shape,shape.face[i]);
-   }
+   private static Color COLOR_SELECTED           = Color.yellow;
+   private static Color COLOR_SELECTED_ALTERNATE = Color.red;
+
+   /**
+    * A set of clip units, registers, and an output buffer for drawing shapes.
+    * The clip units borrow their boundaries from the main clip units,
+    * which are only read while drawing.
+    */
+   private class Worker extends RecursiveAction {
 
-   private void drawFace(Geom.Shape shape, Geom.Face face) {
+      public LineBuffer out;
+      public int lo;
+      public int hi;
 
-      if ( ! face.visible ) return;
+      private Clip.Draw[] units;
+      private double[] reg1;
+      private double[] reg2;
+      private IDraw currentDraw;
 
-      if (texture[0]) {
-         if (useEdgeColor) drawEdgeColor(shape,face,1);
-         else drawTexture(shape,face,Color.white,1);
+      public Worker() {
+         units = new Clip.Draw[0];
+         reg1 = new double[dim];
+         reg2 = new double[dim];
       }
 
-      boolean selected = (shape == selectedShape) && ! hideSel;
-      Color faceColor = Geom.getColor(face.color);
+      protected void compute() {
+         out.clear();
+         draw(lo,hi);
+      }
 
-      if (face.customTexture != null) {
-         face.customTexture.draw(shape,face,currentDraw,origin);
-      } else {
-         for (int i=1; i<10; i++) {
-            if (i == 5 && selected) continue;
-            if (texture[i]) drawTexture(shape,face,faceColor,0.1*i);
+      public void draw(int lo, int hi) {
+         for (int i=lo; i<hi; i++) {
+            if (shapes[i] == null) continue;
+
+            if (units.length < nfront[i]) {
+               Clip.Draw[] temp = new Clip.Draw[nfront[i]];
+               System.arraycopy(units,0,temp,0,units.length);
+               for (int k=units.length; k<temp.length; k++) temp[k] = new Clip.Draw(dim);
+               units = temp;
+            }
+
+            currentDraw = out;
+            for (int k=0; k<nfront[i]; k++) {
+               units[k].setBoundaries(clipUnits[front[i][k]].bl);
+               currentDraw = units[k].chain(currentDraw);
+            }
+            drawShape(shapes[i]);
          }
       }
 
-      if (selected) {
-         Color color = faceColor.equals(COLOR_SELECTED) ? COLOR_SELECTED_ALTERNATE : COLOR_SELECTED;
-         drawTexture(shape,face,color,0.5);
-         // slightly different behavior than in RenderAbsolute:
-         // change to alternate color even if texture 5 not on.
+      private void drawShape(Geom.Shape shape) {
+         for (int i=0; i<shape.face.length; i++) drawFace(shape,shape.face[i]);
       }
-   }
 
-   private static Color COLOR_SELECTED           = Color.yellow;
-   private static Color COLOR_SELECTED_ALTERNATE = Color.red;
+      private void drawFace(Geom.Shape shape, Geom.Face face) {
+
+         if ( ! face.visible ) return;
+
+         if (texture[0]) {
+            if (useEdgeColor) drawEdgeColor(shape,face,1);
+            else drawTexture(shape,face,Color.white,1);
+         }
+
+         boolean selected = (shape == selectedShape) && ! hideSel;
+         Color faceColor = Geom.getColor(face.color);
 
-   private void drawEdgeColor(Geom.Shape shape, Geom.Face face, double scale) {
-      for (int i=0; i<face.ie.length; i++) {
-         Geom.Edge edge = shape.edge[face.ie[i]];
-         Vec.mid(reg1,face.center,shape.vertex[edge.iv1],scale);
-         Vec.mid(reg2,face.center,shape.vertex[edge.iv2],scale);
-         currentDraw.drawLine(reg1,reg2,Geom.getColor(edge.color,face.color),origin);
+         if (face.customTexture != null) {
+            face.customTexture.draw(shape,face,currentDraw,origin);
+         } else {
+            for (int i=1; i<10; i++) {
+               if (i == 5 && selected) continue;
+               if (texture[i]) drawTexture(shape,face,faceColor,0.1*i);
+            }
+         }
+
+         if (selected) {
+            Color color = faceColor.equals(COLOR_SELECTED) ? COLOR_SELECTED_ALTERNATE : COLOR_SELECTED;
+            drawTexture(shape,face,color,0.5);
+            // slightly different behavior than in RenderAbsolute:
+            // change to alternate color even if texture 5 not on.
+         }
+      }
+
+      private void drawEdgeColor(Geom.Shape shape, Geom.Face face, double scale) {
+         for (int i=0; i<face.ie.length; i++) {
+            Geom.Edge edge = shape.edge[face.ie[i]];
+            Vec.mid(reg1,face.center,shape.vertex[edge.iv1],scale);
+            Vec.mid(reg2,face.center,shape.vertex[edge.iv2],scale);
+            currentDraw.drawLine(reg1,reg2,Geom.getColor(edge.color,face.color),origin);
+         }
+      }
+
+      private void drawTexture(Geom.Shape shape, Geom.Face face, Color color, double scale) {
+         for (int i=0; i<face.ie.length; i++) {
+            Geom.Edge edge = shape.edge[face.ie[i]];
+            Vec.mid(reg1,face.center,shape.vertex[edge.iv1],scale);
+            Vec.mid(reg2,face.center,shape.vertex[edge.iv2],scale);
+            currentDraw.drawLine(reg1,reg2,color,origin);
+         }
       }
    }
 
-   private void drawTexture(Geom.Shape shape, Geom.Face face, Color color, double scale) {
-      for (int i=0; i<face.ie.length; i++) {
-         Geom.Edge edge = shape.edge[face.ie[i]];
-         Vec.mid(reg1,face.center,shape.vertex[edge.iv1],scale);
-         Vec.mid(reg2,face.center,shape.vertex[edge.iv2],scale);
-         currentDraw.drawLine(reg1,reg2,color,origin);
+// --- picking ---
+
+   /**
+    * The hit test for findShape.  Shapes can be tested in any order;
+    * ties go to the lowest index, same as a linear scan.
+    */
+   private class Picker implements SphereTree.RayTest {
+
+      private double[] origin;
+      private double[] viewAxis;
+      public double dMin; // fraction of the pick distance
+      public int iMin;
+      public Geom.Shape shapeMin;
+      public int faceMin;
+
+      public void begin(double[] origin, double[] viewAxis) {
+         this.origin = origin;
+         this.viewAxis = viewAxis;
+         dMin = 1;
+         iMin = -1;
+         shapeMin = null;
+      }
+
+      public double test(int i) {
+         Geom.Shape shape = shapes[i];
+         if (shape != null && Clip.closestApproach(shape.shapecenter,origin,viewAxis,reg1) <= shape.radius*shape.radius) { // could be a hit
+            Clip.clip(origin,reg2,shape,clipResult);
+            if ( ! invertNormals ) {
+               if ((clipResult.clip & Clip.KEEP_A) != 0) consider(i,shape,clipResult.a,clipResult.ia); // is a hit
+            } else {
+               if ((clipResult.clip & Clip.KEEP_B) != 0) consider(i,shape,clipResult.b,clipResult.ib);
+            }
+         }
+         return dMin*PICK_DISTANCE;
+      }
+
+      private void consider(int i, Geom.Shape shape, double d, int face) {
+         if (d < dMin || (d == dMin && shapeMin != null && i < iMin)) {
+            dMin = d;
+            iMin = i;
+            shapeMin = shape;
+            faceMin = face;
+         }
       }
    }
 
 }
-
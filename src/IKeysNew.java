@@ -10,7 +10,7 @@
 
 public interface IKeysNew {
 
-   final int NKEY = 19;
+   final int NKEY = 20;
 
    void adjustSpeed(int dv);
    void toggleTrack();
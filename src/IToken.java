@@ -7,7 +7,7 @@ import java.io.IOException;
 /**
  * An interface for writing tokens into a file.
  * Sort of like {@link IStore}.
- * The read side is handled by StreamTokenizer
+ * The read side is handled by {@link Tokenizer}
  * in {@link Language}.
  */
 
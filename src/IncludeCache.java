@@ -0,0 +1,1184 @@
+/*
+ * IncludeCache.java
+ */
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A cache of evaluated include files.  When a file that is included
+ * from another file has been read before, the definitions it made are
+ * reused instead, which skips the tokenizing and all the shape calculations.
+ * Recent results are kept in memory, so reloading a scene or paging through
+ * a directory of scenes doesn't even have to go to the disk, and files that
+ * are slow to evaluate are also saved in a binary cache file for next time.
+ * Small libraries are quicker to read again than to load from a cache file,
+ * so they're only kept in memory, see write.<p>
+ *
+ * The tricky part is knowing when the cached result is still right.
+ * While a file is read, we keep a frame that records which names it looks
+ * up, and afterward the lookups are sorted out: a name can be one of the
+ * file's own definitions, a built-in from DefaultContext, or a definition
+ * from another cached include (see Context.origin).  If anything else
+ * turns up, for example a shape the scene defined before the include, or
+ * if the file leaves something on the stack, the result depends on where
+ * the file was included from, and it isn't cached.  The entry records the
+ * modification time and length of every file that went into it.<p>
+ *
+ * The nested includes are replayed before the definitions are loaded, so
+ * a file also isn't cached if it defines anything before its last include.
+ * That's the normal way to write a library file anyway.<p>
+ *
+ * The values in memory are the same objects that went into the first
+ * dictionary.  That's fine because dictionary values are prototypes that
+ * never change, see Language.tryCopy and isShareable.  Objects that are
+ * shared between definitions in one file are still shared after loading
+ * from a cache file, but sharing with definitions from other files
+ * (usually ideals) is lost.  That only matters for which name a shape
+ * gets when a scene is saved, and that's already somewhat arbitrary.<p>
+ *
+ * The same machinery lets us read the includes of a scene in parallel,
+ * see prefetch.  Each one is evaluated in a context of its own, and then
+ * the scene is read as usual and the results are replayed in order, with
+ * all the usual checks, so anything that doesn't work in isolation is
+ * just read again.
+ */
+
+public class IncludeCache {
+
+// --- flags ---
+
+   /**
+    * Set with -DnoIncludeCache=true, or directly.
+    */
+   public static boolean enabled = ! Boolean.getBoolean("noIncludeCache");
+
+   public static File dir = new File("cache");
+
+   /**
+    * The most memory that results kept in memory can use, in megabytes,
+    * as estimated by estimateSize.  Zero turns off the memory part.
+    * Set with -DincludeCacheMemory=N, or directly.
+    */
+   public static int memoryLimit = Integer.getInteger("includeCacheMemory",64).intValue();
+
+   /**
+    * Evaluate the includes of a scene file in parallel, see prefetch.
+    * Set with -DparallelInclude=true, or directly.
+    */
+   public static boolean parallel = Boolean.getBoolean("parallelInclude");
+
+// --- constants ---
+
+   private static final int MAGIC = 0x34444943; // "4DIC"
+   private static final int VERSION = 4; // same layout as 3, but small files are no longer written
+
+   // a file whose definitions take up many times more space than its text
+   // is a short program that builds big shapes, like libhouse, and reading
+   // the shapes back takes about as long as running the program again.
+   private static final int EXPANSION_MAX = 32;
+
+   // reading an entry back isn't free either.  mapping the file, checking
+   // the dependencies, and rebuilding the objects comes to roughly a fixed
+   // cost plus so much per byte, a bit more for shapes and less for arrays.
+   // we only write an entry if evaluating the file took at least twice that,
+   // not counting nested includes, which get entries of their own.
+   private static final long READ_BASE_NS = 200000;
+   private static final long READ_BYTE_NS = 25;
+
+   // the first files evaluated in a process take many times longer than
+   // usual, because nothing has been compiled yet, so the time alone would
+   // let small files through.  below this length, tokenizing the file again
+   // never costs much more than reading an entry back, so don't bother.
+   private static final long LENGTH_MIN = 16384;
+
+   private static final byte DEP_BUILTIN = 0;
+   private static final byte DEP_ORIGIN  = 1;
+
+// --- origin ---
+
+   /**
+    * The include file that made a definition, and the value it defined,
+    * so that we can tell whether the name has been redefined since.
+    */
+   public static class Origin {
+      public File file;
+      public Object value;
+      public Origin(File file, Object value) {
+         this.file = file;
+         this.value = value;
+      }
+   }
+
+// --- entry ---
+
+   /**
+    * Everything we need to repeat an include, in a form that doesn't
+    * depend on a context.
+    */
+   private static class Entry {
+
+      public File file;
+      public long modified;
+      public long length;
+
+      public File[] files; // everything the result depends on
+      public long[] filesModified;
+      public long[] filesLength;
+      public File[] nested; // direct includes in order
+      public String[] depName;
+      public File[] depFile; // where the name came from, or null for a built-in
+      public String[] name; // own definitions
+      public Object[] value;
+
+      public long size; // estimated memory use
+
+      public boolean isCurrent(long modified, long length) {
+         if (this.modified != modified || this.length != length) return false;
+         for (int i=0; i<files.length; i++) {
+            if (filesModified[i] != files[i].lastModified() || filesLength[i] != files[i].length()) return false;
+         }
+         return true;
+      }
+   }
+
+// --- memory ---
+
+   private static LinkedHashMap memory = new LinkedHashMap(16,0.75f,/* accessOrder = */ true); // File -> Entry
+   private static long memorySize;
+
+   private static synchronized Entry getMemory(File file) {
+      return (Entry) memory.get(file);
+   }
+
+   private static synchronized void putMemory(Entry e) {
+      Entry old = (Entry) memory.put(e.file,e);
+      if (old != null) memorySize -= old.size;
+      memorySize += e.size;
+
+      long limit = memoryLimit * 1048576L;
+      Iterator i = memory.values().iterator(); // least recently used first
+      while (memorySize > limit && i.hasNext()) {
+         Entry eldest = (Entry) i.next();
+         memorySize -= eldest.size;
+         i.remove();
+      }
+   }
+
+   public static synchronized void clearMemory() {
+      memory.clear();
+      memorySize = 0;
+   }
+
+// --- frame ---
+
+   public static class Frame {
+
+      private Frame parent;
+      private File file;
+      private long modified;
+      private long length;
+
+      private HashMap before; // snapshot of the dictionary
+      private Object[] stack;
+      private LinkedHashMap reads; // String -> Object, the first value seen
+      private LinkedHashSet nested; // File, direct includes in order
+      private LinkedHashSet files; // File, everything the result depends on
+      private LinkedHashMap deps; // String -> Object, lookups that aren't own definitions
+      private boolean fail; // result depends on the caller
+      private boolean replayed;
+      private boolean stored; // replayed from an entry that's already been saved
+      private long start; // System.nanoTime
+      private long nestedTime; // time spent in nested includes
+
+      /**
+       * Note a lookup in the dictionary.
+       */
+      public void read(String s, Object o) {
+         if ( ! reads.containsKey(s) ) reads.put(s,o);
+      }
+
+      /**
+       * Note an include.  Changes to the dictionary made by earlier nested
+       * includes are fine, but the file itself mustn't have defined anything.
+       */
+      public void include(Context c, File file) {
+         nested.add(file);
+         if (fail) return;
+
+         Iterator i = c.dict.entrySet().iterator();
+         while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry) i.next();
+            Object o = entry.getValue();
+            if (o == before.get(entry.getKey())) continue;
+            Origin origin = (Origin) c.origin.get(entry.getKey());
+            if (origin == null || origin.value != o) { fail = true; return; }
+         }
+      }
+   }
+
+// --- frame handling ---
+
+   /**
+    * Start a frame for a file that's about to be included.
+    */
+   public static Frame begin(Context c, File file) {
+      Frame f = new Frame();
+
+      f.parent = c.frame;
+      f.file = file;
+      f.modified = file.lastModified();
+      f.length = file.length();
+
+      f.before = (HashMap) c.dict.clone();
+      f.stack = c.stack.toArray();
+      f.reads = new LinkedHashMap();
+      f.nested = new LinkedHashSet();
+      f.files = new LinkedHashSet();
+      f.deps = new LinkedHashMap();
+
+      f.start = System.nanoTime();
+      c.frame = f;
+      return f;
+   }
+
+   /**
+    * Check whether an include is worth keeping a frame for.  With the memory
+    * part turned off, a small file can't end up anywhere, see LENGTH_MIN, so
+    * it's quicker to just read it.  Then whatever included it can't be cached
+    * either, but the big files don't include anything anyway.
+    */
+   public static boolean track(Context c, File file) {
+      if (memoryLimit > 0 || parallel || file.length() >= LENGTH_MIN) return true;
+      if (c.frame != null) c.frame.fail = true;
+      return false;
+   }
+
+   /**
+    * Give up on a frame because the include failed.
+    */
+   public static void abort(Context c, Frame f) {
+      c.frame = f.parent;
+   }
+
+   /**
+    * Finish a frame after the include is done, and write a cache entry
+    * if everything worked out.
+    */
+   public static void end(Context c, Frame f) {
+      c.frame = f.parent;
+
+      long elapsed = System.nanoTime() - f.start;
+      if (f.parent != null) f.parent.nestedTime += elapsed;
+
+      if ( ! sameStack(c,f) ) f.fail = true;
+
+      // sort out the lookups
+
+      Iterator i = f.reads.entrySet().iterator();
+      while ( ! f.fail && i.hasNext() ) {
+         Map.Entry entry = (Map.Entry) i.next();
+         String name = (String) entry.getKey();
+         Object o = entry.getValue();
+
+         Origin origin = (Origin) c.origin.get(name);
+         if (origin != null && origin.value == o) {
+            f.deps.put(name,o);
+            f.files.add(origin.file);
+         } else if (o == c.dict.get(name) && o != f.before.get(name)) {
+            // own definition
+         } else if (isBuiltin(name,o)) {
+            f.deps.put(name,o);
+         } else {
+            f.fail = true;
+         }
+      }
+
+      if (f.parent != null) {
+         if (f.fail) {
+            f.parent.fail = true;
+         } else {
+            i = f.deps.entrySet().iterator();
+            while (i.hasNext()) {
+               Map.Entry entry = (Map.Entry) i.next();
+               f.parent.read((String) entry.getKey(),entry.getValue());
+            }
+            f.parent.files.addAll(f.files);
+            f.parent.files.add(f.file);
+         }
+      }
+
+      if (f.fail) return;
+
+      // find own definitions and record where they came from
+
+      LinkedList own = new LinkedList(); // String
+      i = c.dict.entrySet().iterator();
+      while (i.hasNext()) {
+         Map.Entry entry = (Map.Entry) i.next();
+         String name = (String) entry.getKey();
+         Object o = entry.getValue();
+         if (o == f.before.get(name)) continue;
+         Origin origin = (Origin) c.origin.get(name);
+         if (origin != null && origin.value == o) continue; // from a nested include
+         c.origin.put(name,new Origin(f.file,o));
+         own.add(name);
+      }
+
+      if (f.stored) return; // nothing new
+
+      long time = elapsed - f.nestedTime;
+      boolean disk = ! f.replayed && isWorthWriting(f.length,time);
+      if ( ! f.replayed && ! disk ) getCacheFile(f.file).delete(); // in case there's an old one
+      if ( ! disk && memoryLimit <= 0 && c.prefetch == null ) return; // nobody wants an entry
+
+      Entry e = createEntry(c,f,own);
+      if (c.prefetch != null) c.prefetch.put(e.file,e);
+      if (memoryLimit > 0 && isShareable(e)) {
+         e.size = estimateSize(e);
+         putMemory(e);
+      }
+      if (disk) write(e,time);
+   }
+
+   private static Entry createEntry(Context c, Frame f, LinkedList own) {
+      Entry e = new Entry();
+
+      e.file = f.file;
+      e.modified = f.modified;
+      e.length = f.length;
+
+      int n = f.files.size();
+      e.files = new File[n];
+      e.filesModified = new long[n];
+      e.filesLength = new long[n];
+      Iterator i = f.files.iterator();
+      for (int j=0; j<n; j++) {
+         File file = (File) i.next();
+         e.files[j] = file;
+         e.filesModified[j] = file.lastModified();
+         e.filesLength[j] = file.length();
+      }
+
+      e.nested = (File[]) f.nested.toArray(new File[f.nested.size()]);
+
+      n = f.deps.size();
+      e.depName = new String[n];
+      e.depFile = new File[n];
+      i = f.deps.entrySet().iterator();
+      for (int j=0; j<n; j++) {
+         Map.Entry entry = (Map.Entry) i.next();
+         String name = (String) entry.getKey();
+         Origin origin = (Origin) c.origin.get(name);
+         e.depName[j] = name;
+         e.depFile[j] = (origin != null && origin.value == entry.getValue()) ? origin.file : null;
+      }
+
+      n = own.size();
+      e.name = new String[n];
+      e.value = new Object[n];
+      i = own.iterator();
+      for (int j=0; j<n; j++) {
+         e.name[j] = (String) i.next();
+         e.value[j] = c.dict.get(e.name[j]);
+      }
+
+      return e;
+   }
+
+   /**
+    * Check that the values in an entry can be handed out again.  Shapes and
+    * textures are copied when they come out of the dictionary, and plain
+    * arrays are copied by replay, but anything else (faces, edges, structs)
+    * could be changed by whoever uses it, so the entry stays on disk only.
+    */
+   private static boolean isShareable(Entry e) {
+      for (int i=0; i<e.value.length; i++) {
+         Object o = e.value[i];
+         if ( ! (    o instanceof Geom.ShapeInterface
+                  || o instanceof Geom.Texture
+                  || o instanceof double[]
+                  || o instanceof double[][]
+                  || o instanceof Double
+                  || o instanceof Boolean
+                  || o instanceof String
+                  || o instanceof Color ) ) return false;
+      }
+      return true;
+   }
+
+   /**
+    * Estimate the memory used by the values in an entry.  The numbers don't
+    * have to be exact, they just have to be in proportion.
+    */
+   private static long estimateSize(Entry e) {
+      IdentityHashMap seen = new IdentityHashMap();
+      long size = 0;
+      for (int i=0; i<e.value.length; i++) size += estimateSize(e.value[i],seen);
+      return size;
+   }
+
+   private static long estimateSize(Object o, IdentityHashMap seen) {
+      if (o == null || seen.put(o,o) != null) return 0;
+
+      if (o instanceof double[]) return 16 + 8*((double[]) o).length;
+      if (o instanceof int[]) return 16 + 4*((int[]) o).length;
+      if (o instanceof String) return 40 + 2*((String) o).length();
+      if (o instanceof Object[]) {
+         Object[] a = (Object[]) o;
+         long size = 16 + 4*a.length;
+         for (int i=0; i<a.length; i++) size += estimateSize(a[i],seen);
+         return size;
+      }
+
+      if (o instanceof Geom.Shape) {
+         Geom.Shape s = (Geom.Shape) o;
+         return 80 + estimateSize(s.face,seen)
+                   + estimateSize(s.edge,seen)
+                   + estimateSize(s.vertex,seen)
+                   + estimateSize(s.topology,seen)
+                   + estimateSize(s.shapecenter,seen)
+                   + estimateSize(s.aligncenter,seen)
+                   + estimateSize(s.axis,seen)
+                   + estimateSize(s.ideal,seen);
+      }
+      if (o instanceof Geom.CompositeShape) {
+         return 16 + estimateSize(((Geom.CompositeShape) o).component,seen);
+      }
+      if (o instanceof Geom.Topology) {
+         Geom.Topology t = (Geom.Topology) o;
+         return 24 + estimateSize(t.subface,seen) + estimateSize(t.nbv,seen);
+      }
+      if (o instanceof Geom.Face) {
+         Geom.Face f = (Geom.Face) o;
+         return 48 + estimateSize(f.ie,seen)
+                   + estimateSize(f.center,seen)
+                   + estimateSize(f.normal,seen)
+                   + estimateSize(f.customTexture,seen);
+      }
+      if (o instanceof Geom.Texture) {
+         Geom.Texture t = (Geom.Texture) o;
+         return 24 + estimateSize(t.edge,seen) + estimateSize(t.vertex,seen);
+      }
+      return 32; // edges, colors, and anything else small
+   }
+
+   private static boolean sameStack(Context c, Frame f) {
+      if (c.stack.size() != f.stack.length) return false;
+      for (int i=0; i<f.stack.length; i++) {
+         if (c.stack.get(i) != f.stack[i]) return false;
+      }
+      return true;
+      // a file could still look at the caller's part of the stack without
+      // changing it, but there's no good reason to write a library that way
+   }
+
+   private static HashMap defaults;
+
+   /**
+    * Check whether a value is the same as the one DefaultContext defines.
+    * Commands only have to be of the same class.
+    */
+   private static boolean isBuiltin(String name, Object o) {
+      synchronized (IncludeCache.class) {
+         if (defaults == null) defaults = DefaultContext.create().dict;
+      }
+      Object d = defaults.get(name);
+      if (d == null || o == null) return false;
+
+      if (d instanceof ICommand) return (o.getClass() == d.getClass());
+      if (d instanceof double[]) return (o instanceof double[]) && Arrays.equals((double[]) o,(double[]) d);
+      if (d instanceof Double || d instanceof Boolean || d instanceof Color) return d.equals(o);
+      return false; // other things, don't try to compare them
+   }
+
+// --- files ---
+
+   private static File getCacheFile(File file) {
+      String name = file.getName().replaceAll("[^A-Za-z0-9_.-]","_");
+      return new File(dir,name + "-" + Integer.toHexString(file.getPath().hashCode()) + ".bin");
+   }
+
+   /**
+    * Decide whether a file could be worth a cache file before going to the
+    * trouble of serializing it.  Write makes the final decision.
+    * @param time The time it took to evaluate the file, in nanoseconds.
+    */
+   private static boolean isWorthWriting(long length, long time) {
+      return (length >= LENGTH_MIN && time >= 2*READ_BASE_NS);
+   }
+
+   /**
+    * Write a cache file, if reading it back would be enough faster than
+    * evaluating the file again.
+    * @param time The time it took to evaluate the file, in nanoseconds.
+    */
+   private static void write(Entry entry, long time) {
+      try {
+         Output out = new Output();
+
+         out.putInt(MAGIC);
+         out.putInt(VERSION);
+         out.putString(entry.file.getPath());
+         out.putLong(entry.modified);
+         out.putLong(entry.length);
+
+         out.putInt(entry.files.length);
+         for (int i=0; i<entry.files.length; i++) {
+            out.putString(entry.files[i].getPath());
+            out.putLong(entry.filesModified[i]);
+            out.putLong(entry.filesLength[i]);
+         }
+
+         out.putInt(entry.nested.length);
+         for (int i=0; i<entry.nested.length; i++) {
+            out.putString(entry.nested[i].getPath());
+         }
+
+         out.putInt(entry.depName.length);
+         for (int i=0; i<entry.depName.length; i++) {
+            if (entry.depFile[i] != null) {
+               out.putByte(DEP_ORIGIN);
+               out.putString(entry.depName[i]);
+               out.putString(entry.depFile[i].getPath());
+            } else {
+               out.putByte(DEP_BUILTIN);
+               out.putString(entry.depName[i]);
+            }
+         }
+
+         out.putInt(entry.name.length);
+         for (int i=0; i<entry.name.length; i++) {
+            out.putString(entry.name[i]);
+            out.putObject(entry.value[i]);
+         }
+
+         File dest = getCacheFile(entry.file);
+         if (    out.size() > EXPANSION_MAX * entry.length
+              || time < 2*(READ_BASE_NS + READ_BYTE_NS * out.size()) ) {
+            dest.delete(); // in case there's an old one
+            return;
+         }
+
+         // write to a temporary file and rename, so that a partial
+         // file never gets read
+
+         dir.mkdirs();
+         File temp = File.createTempFile(dest.getName(),".tmp",dir); // unique, see prefetch
+         boolean renamed = false;
+         try {
+            FileChannel channel = new FileOutputStream(temp).getChannel();
+            try {
+               ByteBuffer b = out.getBuffer();
+               while (b.hasRemaining()) channel.write(b);
+            } finally {
+               channel.close();
+            }
+            dest.delete();
+            renamed = temp.renameTo(dest);
+            // on some systems the old file can't be replaced while it's still
+            // mapped from an earlier load, in that case we try again next time
+         } finally {
+            if ( ! renamed ) temp.delete(); // the names are unique, so nothing else will clean up
+         }
+
+      } catch (IOException e) {
+         // something we can't cache, or a problem with the disk.
+         // either way, the file will just get read next time too.
+      }
+   }
+
+   private static ByteBuffer load(File file) {
+      try {
+         FileChannel channel = new FileInputStream(file).getChannel();
+         try {
+            return channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            // the mapping stays valid after the channel is closed
+         } finally {
+            channel.close();
+         }
+      } catch (IOException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Read a cache file.
+    * @return The entry, or null if there isn't one or it's damaged.
+    */
+   private static Entry read(File file) {
+
+      File cacheFile = getCacheFile(file);
+      if ( ! cacheFile.exists() ) return null;
+      ByteBuffer b = load(cacheFile);
+      if (b == null) return null;
+
+      Input in = new Input(b);
+      Entry entry = new Entry();
+      try {
+
+         if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+         entry.file = new File(in.getString());
+         if ( ! entry.file.equals(file) ) return null; // hash collision
+         entry.modified = in.getLong();
+         entry.length = in.getLong();
+
+         int n = in.getInt();
+         entry.files = new File[n];
+         entry.filesModified = new long[n];
+         entry.filesLength = new long[n];
+         for (int i=0; i<n; i++) {
+            entry.files[i] = new File(in.getString());
+            entry.filesModified[i] = in.getLong();
+            entry.filesLength[i] = in.getLong();
+         }
+
+         entry.nested = new File[in.getInt()];
+         for (int i=0; i<entry.nested.length; i++) {
+            entry.nested[i] = new File(in.getString());
+         }
+
+         n = in.getInt();
+         entry.depName = new String[n];
+         entry.depFile = new File[n];
+         for (int i=0; i<n; i++) {
+            byte type = in.getByte();
+            entry.depName[i] = in.getString();
+            if (type == DEP_ORIGIN) entry.depFile[i] = new File(in.getString());
+         }
+
+         n = in.getInt();
+         entry.name = new String[n];
+         entry.value = new Object[n];
+         for (int i=0; i<n; i++) {
+            entry.name[i] = in.getString();
+            entry.value[i] = in.getObject();
+         }
+
+      } catch (IOException e) {
+         return null;
+      } catch (RuntimeException e) {
+         return null; // buffer underflow or bad cast
+      }
+      // a damaged file gets replaced when the include is read normally
+
+      return entry;
+   }
+
+   /**
+    * Try to repeat an include from a prefetch, from memory, or from a cache
+    * file.  Call this right after begin; if it returns false, the file should
+    * be read as usual.  The nested includes may have been done even if it
+    * returns false.
+    */
+   public static boolean replay(Context c, Frame f) throws Exception {
+
+      Entry e = (c.prefetch != null) ? (Entry) c.prefetch.remove(f.file) : null;
+      if (e == null) e = getMemory(f.file);
+      boolean stored = (e != null && e.isCurrent(f.modified,f.length));
+      if ( ! stored ) {
+         e = read(f.file);
+         if (e == null || ! e.isCurrent(f.modified,f.length)) return false;
+      }
+
+      // nested includes.  errors here are real, the same thing
+      // would have happened if we'd read the file.
+
+      for (int i=0; i<e.nested.length; i++) {
+         Language.include(c,e.nested[i]);
+      }
+
+      // lookups
+
+      for (int i=0; i<e.depName.length; i++) {
+         String s = e.depName[i];
+         Object o = c.dict.get(s);
+         if (e.depFile[i] != null) {
+            Origin origin = (Origin) c.origin.get(s);
+            if (origin == null || origin.value != o || ! origin.file.equals(e.depFile[i])) return false;
+         } else {
+            if ( ! isBuiltin(s,o) ) return false;
+         }
+         f.read(s,o);
+      }
+
+      // definitions
+
+      for (int i=0; i<e.name.length; i++) {
+         Object o = e.value[i];
+         if (stored) { // might be in memory, see isShareable
+            if (o instanceof double[]) o = Geom.clone1((double[]) o);
+            else if (o instanceof double[][]) o = Geom.clone2((double[][]) o);
+         }
+         c.dict.put(e.name[i],o);
+         c.topLevelDef.remove(e.name[i]); // same as Command.Def, never top level here
+      }
+
+      f.replayed = true;
+      f.stored = stored;
+      return true;
+   }
+
+// --- prefetch ---
+
+   /**
+    * Evaluate the files that a scene file includes, all at the same time,
+    * each in a context of its own.  The results go in Context.prefetch,
+    * and then when the scene is read, the includes are replayed from there
+    * in the usual order.  A file that depends on something from the scene
+    * or from an earlier include fails in isolation, or fails the checks in
+    * replay, and then it's just read normally, so the result is the same
+    * as reading everything in order.  Files that are included by several
+    * of the others get evaluated more than once, but that's still faster
+    * than waiting for them.
+    */
+   public static void prefetch(Context c, File file) {
+
+      // look for includes.  a word other than include could run one too,
+      // but that's no help to us, it just gets read in order.
+
+      Context probe = createContext(c,file);
+      LinkedHashSet files = new LinkedHashSet(); // File
+      try {
+         FileReader fr = new FileReader(file);
+         Tokenizer tk;
+         try {
+            tk = new Tokenizer(fr);
+         } finally {
+            fr.close();
+         }
+         String s = null;
+         while (true) {
+            int t = tk.nextToken();
+            if (t == Tokenizer.TT_EOF) break;
+            if (t == Tokenizer.TT_WORD && s != null && tk.sval.equals("include")) {
+               try {
+                  files.add(Language.resolve(probe,s).getCanonicalFile());
+               } catch (Exception e) {
+                  // reported when the scene is read
+               }
+            }
+            s = (t == '"' || t == '\'') ? tk.sval : null;
+         }
+      } catch (IOException e) {
+         return; // same here
+      }
+
+      // files that are already in memory are quicker to replay than to start a thread for
+
+      Iterator i = files.iterator();
+      while (i.hasNext()) {
+         File f = (File) i.next();
+         Entry e = getMemory(f);
+         if (e != null && e.isCurrent(f.lastModified(),f.length())) i.remove();
+      }
+      if (files.size() < 2 || ForkJoinPool.getCommonPoolParallelism() < 2) return;
+
+      Task[] task = new Task[files.size()];
+      i = files.iterator();
+      for (int j=0; j<task.length; j++) {
+         task[j] = new Task(createContext(c,file),(File) i.next());
+      }
+      ForkJoinTask.invokeAll(task);
+      if (c.progress != null) c.progress.check(); // the tasks just stop, see Task
+
+      // merge in source order, so that when a nested include was evaluated
+      // more than once, the result doesn't depend on the timing
+
+      if (c.prefetch == null) c.prefetch = new HashMap();
+      for (int j=0; j<task.length; j++) {
+         i = task[j].c.prefetch.entrySet().iterator();
+         while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry) i.next();
+            if ( ! c.prefetch.containsKey(entry.getKey()) ) c.prefetch.put(entry.getKey(),entry.getValue());
+         }
+      }
+   }
+
+   /**
+    * Make a context that looks like the scene file to the files it includes.
+    * The progress is shared, so that the load dialog keeps counting
+    * and so that cancel stops the tasks too.
+    */
+   private static Context createContext(Context c, File file) {
+      Context w = DefaultContext.create();
+      w.libDirs.addAll(c.libDirs);
+      w.dirStack.push(file.getParentFile());
+      w.prefetch = new HashMap();
+      w.progress = c.progress;
+      return w;
+   }
+
+   private static class Task extends RecursiveAction {
+
+      public Context c;
+      public File file;
+
+      public Task(Context c, File file) {
+         this.c = c;
+         this.file = file;
+      }
+
+      protected void compute() {
+         try {
+            Language.include(c,file);
+         } catch (Exception e) {
+            // the file gets read again in order, and the error reported then.
+            // that includes cancellation, which prefetch checks for afterward.
+         }
+      }
+   }
+
+// --- serialization ---
+
+   // objects are written in a simple tagged format.  every object gets a
+   // handle the first time it's written, and after that it's written as a
+   // reference, so sharing within a file (ideals, index arrays) is kept.
+
+   private static final byte T_NULL      = 0;
+   private static final byte T_REF       = 1;
+   private static final byte T_DOUBLE    = 2;
+   private static final byte T_BOOLEAN   = 3;
+   private static final byte T_STRING    = 4;
+   private static final byte T_COLOR     = 5;
+   private static final byte T_DOUBLES   = 6; // double[]
+   private static final byte T_INTS      = 7; // int[]
+   private static final byte T_ARRAY     = 8; // array of objects, see arrayType
+   private static final byte T_SHAPE     = 9;
+   private static final byte T_COMPOSITE = 10;
+   private static final byte T_FACE      = 11;
+   private static final byte T_SUBFACE   = 12;
+   private static final byte T_EDGE      = 13;
+   private static final byte T_TEXTURE   = 14;
+   private static final byte T_TOPOLOGY  = 15;
+
+   private static final Class[] arrayType = {
+         double[].class,
+         int[].class,
+         Geom.Face.class,
+         Geom.Subface.class,
+         Geom.Edge.class,
+         Geom.Shape.class,
+         Geom.CompositeShape.class,
+         Geom.ShapeInterface.class
+      };
+
+   private static class Output {
+
+      private ByteBuffer b;
+      private IdentityHashMap handle;
+
+      public Output() {
+         b = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+         handle = new IdentityHashMap();
+      }
+
+      public int size() {
+         return b.position();
+      }
+
+      public ByteBuffer getBuffer() {
+         b.flip();
+         return b;
+      }
+
+      private void ensure(int n) {
+         if (b.remaining() >= n) return;
+         ByteBuffer temp = ByteBuffer.allocate(Math.max(2*b.capacity(),b.position()+n)).order(ByteOrder.LITTLE_ENDIAN);
+         b.flip();
+         temp.put(b);
+         b = temp;
+      }
+
+      public void putByte(byte x) { ensure(1); b.put(x); }
+      public void putInt(int x) { ensure(4); b.putInt(x); }
+      public void putLong(long x) { ensure(8); b.putLong(x); }
+      public void putDouble(double x) { ensure(8); b.putDouble(x); }
+      public void putBoolean(boolean x) { putByte(x ? (byte) 1 : (byte) 0); }
+
+      public void putString(String s) {
+         putInt(s.length());
+         ensure(2*s.length());
+         for (int i=0; i<s.length(); i++) b.putChar(s.charAt(i));
+      }
+
+      public void putObject(Object o) throws IOException {
+         if (o == null) { putByte(T_NULL); return; }
+
+         Integer h = (Integer) handle.get(o);
+         if (h != null) {
+            putByte(T_REF);
+            putInt(h.intValue());
+            return;
+         }
+         handle.put(o,Integer.valueOf(handle.size()));
+
+         Class k = o.getClass();
+         if (k == Double.class) {
+            putByte(T_DOUBLE);
+            putDouble(((Double) o).doubleValue());
+         } else if (k == Boolean.class) {
+            putByte(T_BOOLEAN);
+            putBoolean(((Boolean) o).booleanValue());
+         } else if (k == String.class) {
+            putByte(T_STRING);
+            putString((String) o);
+         } else if (k == Color.class) {
+            putByte(T_COLOR);
+            putInt(((Color) o).getRGB());
+         } else if (k == double[].class) {
+            double[] d = (double[]) o;
+            putByte(T_DOUBLES);
+            putInt(d.length);
+            ensure(8*d.length);
+            for (int i=0; i<d.length; i++) b.putDouble(d[i]);
+         } else if (k == int[].class) {
+            int[] d = (int[]) o;
+            putByte(T_INTS);
+            putInt(d.length);
+            ensure(4*d.length);
+            for (int i=0; i<d.length; i++) b.putInt(d[i]);
+         } else if (k.isArray()) {
+            Object[] a = (Object[]) o;
+            putByte(T_ARRAY);
+            putByte(getArrayType(k.getComponentType()));
+            putInt(a.length);
+            for (int i=0; i<a.length; i++) putObject(a[i]);
+         } else if (k == Geom.Shape.class) {
+            putShape((Geom.Shape) o);
+         } else if (k == Geom.CompositeShape.class) {
+            putByte(T_COMPOSITE);
+            putObject(((Geom.CompositeShape) o).component);
+         } else if (k == Geom.Face.class) {
+            putFace((Geom.Face) o);
+         } else if (k == Geom.Subface.class) {
+            Geom.Subface sf = (Geom.Subface) o;
+            putByte(T_SUBFACE);
+            putInt(sf.if1);
+            putInt(sf.if2);
+         } else if (k == Geom.Edge.class) {
+            Geom.Edge e = (Geom.Edge) o;
+            putByte(T_EDGE);
+            putInt(e.iv1);
+            putInt(e.iv2);
+            putObject(e.color);
+         } else if (k == Geom.Texture.class) {
+            Geom.Texture t = (Geom.Texture) o;
+            putByte(T_TEXTURE);
+            putObject(t.edge);
+            putObject(t.vertex);
+         } else if (k == Geom.Topology.class) {
+            Geom.Topology t = (Geom.Topology) o;
+            putByte(T_TOPOLOGY);
+            putObject(t.subface); // null if nobody's asked yet
+            putObject(t.nbv);
+         } else {
+            throw new IOException("Unable to cache " + k.getName() + ".");
+         }
+      }
+
+      private byte getArrayType(Class k) throws IOException {
+         for (int i=0; i<arrayType.length; i++) {
+            if (arrayType[i] == k) return (byte) i;
+         }
+         throw new IOException("Unable to cache " + k.getName() + " array.");
+      }
+
+      private void putShape(Geom.Shape s) throws IOException {
+         if (s.hint != null) throw new IOException("Unable to cache shape with hint.");
+         putByte(T_SHAPE);
+         putObject(s.face);
+         putObject(s.edge);
+         putObject(s.vertex);
+         putObject(s.topology);
+         putObject(s.shapecenter);
+         putObject(s.aligncenter);
+         putDouble(s.radius);
+         putObject(s.axis);
+         putObject(s.ideal);
+         putBoolean(s.systemMove);
+         putBoolean(s.noUserMove);
+         putObject(s.bottomFace);
+         putBoolean(s.geometryShared);
+         putBoolean(s.edgesShared);
+      }
+
+      private void putFace(Geom.Face f) throws IOException {
+         if (f.customTexture != null && f.customTexture.getClass() != Geom.Texture.class) {
+            throw new IOException("Unable to cache custom texture.");
+         }
+         putByte(T_FACE);
+         putObject(f.ie);
+         putObject(f.center);
+         putObject(f.normal);
+         putDouble(f.threshold);
+         putObject(f.color);
+         putObject(f.customTexture);
+      }
+   }
+
+   private static class Input {
+
+      private ByteBuffer b;
+      private ArrayList handle;
+
+      public Input(ByteBuffer b) {
+         this.b = b;
+         handle = new ArrayList();
+      }
+
+      public byte getByte() { return b.get(); }
+      public int getInt() { return b.getInt(); }
+      public long getLong() { return b.getLong(); }
+      public double getDouble() { return b.getDouble(); }
+      public boolean getBoolean() { return (b.get() != 0); }
+
+      public String getString() {
+         int n = b.getInt();
+         char[] c = new char[n];
+         for (int i=0; i<n; i++) c[i] = b.getChar();
+         return new String(c);
+      }
+
+      private Object add(Object o) {
+         handle.add(o);
+         return o;
+      }
+
+      public Object getObject() throws IOException {
+         byte tag = b.get();
+         switch (tag) {
+
+         case T_NULL:
+            return null;
+         case T_REF:
+            return handle.get(b.getInt());
+
+         case T_DOUBLE:
+            return add(Double.valueOf(b.getDouble()));
+         case T_BOOLEAN:
+            return add(Boolean.valueOf(getBoolean()));
+         case T_STRING:
+            return add(getString());
+         case T_COLOR:
+            return add(new Color(b.getInt(),/* hasalpha = */ true));
+
+         case T_DOUBLES: {
+               double[] d = new double[b.getInt()];
+               add(d);
+               for (int i=0; i<d.length; i++) d[i] = b.getDouble();
+               return d;
+            }
+         case T_INTS: {
+               int[] d = new int[b.getInt()];
+               add(d);
+               for (int i=0; i<d.length; i++) d[i] = b.getInt();
+               return d;
+            }
+         case T_ARRAY: {
+               Class k = arrayType[b.get()];
+               Object[] a = (Object[]) Array.newInstance(k,b.getInt());
+               add(a);
+               for (int i=0; i<a.length; i++) a[i] = getObject();
+               return a;
+            }
+
+         case T_SHAPE:
+            return getShape();
+         case T_COMPOSITE: {
+               Geom.CompositeShape cs = new Geom.CompositeShape(null);
+               add(cs);
+               cs.component = (Geom.ShapeInterface[]) getObject();
+               return cs;
+            }
+         case T_FACE:
+            return getFace();
+         case T_SUBFACE: {
+               Geom.Subface sf = new Geom.Subface();
+               add(sf);
+               sf.if1 = b.getInt();
+               sf.if2 = b.getInt();
+               return sf;
+            }
+         case T_EDGE: {
+               Geom.Edge e = new Geom.Edge();
+               add(e);
+               e.iv1 = b.getInt();
+               e.iv2 = b.getInt();
+               e.color = (Color) getObject();
+               return e;
+            }
+         case T_TEXTURE: {
+               Geom.Texture t = new Geom.Texture();
+               add(t);
+               t.edge = (Geom.Edge[]) getObject();
+               t.vertex = (double[][]) getObject();
+               return t;
+            }
+         case T_TOPOLOGY: {
+               Geom.Topology t = new Geom.Topology();
+               add(t);
+               t.subface = (Geom.Subface[]) getObject();
+               t.nbv = (int[][]) getObject();
+               return t;
+            }
+
+         default:
+            throw new IOException("Unknown tag " + tag + ".");
+         }
+      }
+
+      private Geom.Shape getShape() throws IOException {
+         Geom.Shape s = new Geom.Shape();
+         add(s);
+         s.face = (Geom.Face[]) getObject();
+         s.edge = (Geom.Edge[]) getObject();
+         s.vertex = (double[][]) getObject();
+         s.topology = (Geom.Topology) getObject();
+         s.shapecenter = (double[]) getObject();
+         s.aligncenter = (double[]) getObject();
+         s.radius = b.getDouble();
+         s.axis = (double[][]) getObject();
+         s.ideal = (Geom.Shape) getObject();
+         s.systemMove = getBoolean();
+         s.noUserMove = getBoolean();
+         s.bottomFace = (Geom.Face) getObject();
+         s.geometryShared = getBoolean();
+         s.edgesShared = getBoolean();
+         return s;
+      }
+
+      private Geom.Face getFace() throws IOException {
+         Geom.Face f = new Geom.Face();
+         add(f);
+         f.ie = (int[]) getObject();
+         f.center = (double[]) getObject();
+         f.normal = (double[]) getObject();
+         f.threshold = b.getDouble();
+         f.color = (Color) getObject();
+         f.customTexture = (Geom.CustomTexture) getObject();
+         return f;
+      }
+   }
+
+}
@@ -2,17 +2,27 @@
  * KeyBuffer.java
  */
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 /**
- * A buffer that keeps track of mapped keyboard state.
+ * A buffer that keeps track of mapped keyboard state.<p>
+ *
+ * The key mapper runs on the event thread and the controller runs on the clock thread,
+ * so changes don't go straight into the arrays, they go through a queue
+ * and are applied when the controller calls drain.  That way the event thread
+ * never has to wait for a frame to finish just to report a key.
  */
 
 public class KeyBuffer {
 
 // --- fields ---
 
+   // only touched by drain and by the controller
    public boolean[] pressed;
    public boolean[] down;
 
+   private ConcurrentLinkedQueue queue; // Integer change codes, see below
+
 // --- ids ---
 
    // map OptionsKeys and OptionsKeysConfig numbers into a single ID space
@@ -26,22 +36,63 @@ public class KeyBuffer {
 
    public static final int ID_NONE = -1;
 
+// --- change codes ---
+
+   // a change is an id shifted left plus an operation in the low bits,
+   // except that the clear operations don't need an id.
+
+   private static final int OP_PRESS = 0; // press and set down
+   private static final int OP_DOWN  = 1;
+   private static final int OP_UP    = 2;
+   private static final int OP_CLEAR_DOWN = 3;
+   private static final int OP_BITS  = 2;
+   private static final int OP_MASK  = 3;
+
 // --- construction ---
 
    public KeyBuffer() {
       pressed = new boolean[NID];
       down = new boolean[NID];
+      queue = new ConcurrentLinkedQueue();
    }
 
-// --- methods ---
+// --- methods for the key mapper ---
 
-   public void clearPressed() {
-      for (int i=0; i<NID; i++) pressed[i] = false;
+   public void press(int id) {
+      queue.add(Integer.valueOf((id << OP_BITS) | OP_PRESS));
+   }
+
+   public void setDown(int id, boolean down) {
+      queue.add(Integer.valueOf((id << OP_BITS) | (down ? OP_DOWN : OP_UP)));
    }
 
    public void clearDown() {
-      for (int i=0; i<NID; i++) down[i] = false;
+      queue.add(Integer.valueOf(OP_CLEAR_DOWN));
    }
 
-}
+// --- methods for the controller ---
+
+   /**
+    * Apply all the changes that have been queued so far.
+    */
+   public void drain() {
+      Integer change;
+      while ((change = (Integer) queue.poll()) != null) {
+         int c = change.intValue();
+         int id = c >> OP_BITS;
+         switch (c & OP_MASK) {
+         case OP_PRESS:  pressed[id] = true; down[id] = true;  break;
+         case OP_DOWN:                       down[id] = true;  break;
+         case OP_UP:                         down[id] = false; break;
+         case OP_CLEAR_DOWN:
+            for (int i=0; i<NID; i++) down[i] = false;
+            break;
+         }
+      }
+   }
+
+   public void clearPressed() {
+      for (int i=0; i<NID; i++) pressed[i] = false;
+   }
 
+}
@@ -65,6 +65,7 @@ public class KeyMapper {
       add(new Key(KeyEvent.VK_H,2),KeyBuffer.getKeyNew(16));
       add(new Key(KeyEvent.VK_P,2),KeyBuffer.getKeyNew(17));
       add(new Key(KeyEvent.VK_P,3),KeyBuffer.getKeyNew(18));
+      add(new Key(KeyEvent.VK_L,2),KeyBuffer.getKeyNew(19));
 
       for (int i=0; i<OptionsKeys.NKEY; i++) {
          add(ok .key[i],KeyBuffer.getKeyID(i));
@@ -109,7 +110,7 @@ public class KeyMapper {
       // modifiersDown can stay as it is
 
       int id = entry.id[modifiersDown];
-      if (id != KeyBuffer.ID_NONE) buf.down[id] = false;
+      if (id != KeyBuffer.ID_NONE) buf.setDown(id,false);
    }
 
    /**
@@ -129,7 +130,7 @@ public class KeyMapper {
       modifiersDown = key.modifiers;
 
       int id = entry.id[modifiersDown];
-      if (id != KeyBuffer.ID_NONE) buf.down[id] = true;
+      if (id != KeyBuffer.ID_NONE) buf.setDown(id,true);
    }
 
    /**
@@ -143,7 +144,7 @@ public class KeyMapper {
          if (entry.down) {
             int id = entry.id[modifiersDown];
             if (id != KeyBuffer.ID_NONE) {
-               buf.down[id] = true;
+               buf.setDown(id,true);
             }
          }
       }
@@ -180,8 +181,8 @@ public class KeyMapper {
 
                int id = entry.id[modifiersDown];
                if (id != KeyBuffer.ID_NONE) {
-                  if (down) buf.pressed[id] = true;
-                            buf.down   [id] = down;
+                  if (down) buf.press(id);
+                  else      buf.setDown(id,false);
                }
             }
          }
@@ -14,6 +14,15 @@ import java.util.Iterator;
 
 public class Language {
 
+   /**
+    * Read files with StreamTokenizer instead of Tokenizer.  The results
+    * are the same either way, this is just for comparison.
+    * Set with -DstreamTokenizer=true, or directly.
+    */
+   public static boolean useStreamTokenizer = Boolean.getBoolean("streamTokenizer");
+
+   private static final int PROGRESS_MASK = 1023; // tokens between progress reports, minus one
+
    public static void include(Context c, String filename) throws Exception {
       if (include(c,resolve(c,filename))) {
          if (c.isTopLevel()) c.topLevelInclude.add(filename);
@@ -23,26 +32,58 @@ public class Language {
    public static boolean include(Context c, File file) throws Exception {
 
       file = file.getCanonicalFile();
+      if (c.frame != null) c.frame.include(c,file);
       if ( ! c.included.add(file) ) return false;
 
+      if (IncludeCache.enabled && ! c.dirStack.isEmpty() && IncludeCache.track(c,file)) { // included from another file
+         IncludeCache.Frame f = IncludeCache.begin(c,file);
+         try {
+            if ( ! IncludeCache.replay(c,f) ) readFile(c,file);
+         } catch (Exception e) {
+            IncludeCache.abort(c,f);
+            throw e;
+         }
+         IncludeCache.end(c,f);
+      } else {
+         if (IncludeCache.enabled && IncludeCache.parallel && c.dirStack.isEmpty()) IncludeCache.prefetch(c,file);
+         readFile(c,file);
+      }
+
+      return true;
+   }
+
+   private static void readFile(Context c, File file) throws Exception {
+
       FileReader fr = new FileReader(file);
       try {
-         StreamTokenizer st = createTokenizer(fr);
-
-         c.dirStack.push(file.getParentFile());
-         try {
-            doFile(c,st);
-         } catch (Throwable t) {
-            throw (t instanceof LanguageException) ? (Exception) t : new LanguageException(t,file,st.toString());
-         } finally {
-            c.dirStack.pop();
+         if (useStreamTokenizer) {
+            StreamTokenizer st = createTokenizer(fr);
+
+            c.dirStack.push(file.getParentFile());
+            try {
+               doFile(c,st);
+            } catch (Throwable t) {
+               throw (t instanceof LanguageException) ? (Exception) t : new LanguageException(t,file,st.toString());
+            } finally {
+               c.dirStack.pop();
+            }
+         } else {
+            Tokenizer tk = new Tokenizer(fr);
+            fr.close(); // it's all in the buffer now
+
+            c.dirStack.push(file.getParentFile());
+            try {
+               doFile(c,tk);
+            } catch (Throwable t) {
+               throw (t instanceof LanguageException) ? (Exception) t : new LanguageException(t,file,tk.toString());
+            } finally {
+               c.dirStack.pop();
+            }
          }
 
       } finally {
          fr.close();
       }
-
-      return true;
    }
 
    public static File resolve(Context c, String filename) throws Exception {
@@ -101,6 +142,59 @@ public class Language {
       }
    }
 
+   public static void doFile(Context c, Tokenizer tk) throws Exception {
+      int count = 0;
+      int mark = 0; // position already added to the progress
+      while (true) {
+         if (c.progress != null && (++count & PROGRESS_MASK) == 0) {
+            c.progress.addChars(tk.getPosition()-mark);
+            mark = tk.getPosition();
+            c.progress.check();
+         }
+         int t = tk.nextToken();
+         if (t == Tokenizer.TT_EOF) break;
+         switch (t) {
+         case Tokenizer.TT_NUMBER:
+            c.stack.push(new Double(tk.nval));
+            break;
+         case '\'':
+         case '"':
+            c.stack.push(tk.sval);
+            break;
+         case Tokenizer.TT_WORD:
+            doWord(c,tk.sval);
+            break;
+         case '[':
+            if ( ! doArray(c,tk) ) doWord(c,"[");
+            break;
+         default: // ordinary chars, treat as words of length 1
+            doWord(c,String.valueOf((char) t));
+            break;
+         }
+      }
+      if (c.progress != null) c.progress.addChars(tk.getPosition()-mark);
+   }
+
+   /**
+    * Read an array of numbers straight into a primitive array, without
+    * pushing each number onto the stack.  The result is the same as
+    * from the array commands, which handle everything else.
+    * @return False if the fast path doesn't apply and nothing was read.
+    */
+   private static boolean doArray(Context c, Tokenizer tk) throws Exception {
+      Object start = c.dict.get("[");
+      Object end   = c.dict.get("]");
+      if ( ! (start instanceof Command.ArrayStart) ) return false;
+      if ( ! (end   instanceof Command.ArrayEnd  ) ) return false;
+      if (c.frame != null) { c.frame.read("[",start); c.frame.read("]",end); }
+
+      double[] d = tk.readNumbers(']');
+      if (d == null) return false;
+
+      c.stack.push(d);
+      return true;
+   }
+
    public static void doWord(Context c, String s) throws Exception {
       if (s.charAt(0) == '#') { // color literal
          c.stack.push(Color.decode(s));
@@ -111,6 +205,7 @@ public class Language {
          return;
       }
       Object o = c.dict.get(s);
+      if (c.frame != null) c.frame.read(s,o);
       if (o == null) throw new Exception("Undefined token '" + s + "'.");
       if (o instanceof ICommand) {
          ((ICommand) o).exec(c);
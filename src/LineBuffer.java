@@ -3,10 +3,11 @@
  */
 
 import java.awt.Color;
-import java.util.Vector;
 
 /**
- * A line buffer that reuses line objects to avoid memory allocation.
+ * A line buffer that keeps everything in flat primitive arrays to avoid memory allocation.
+ * Line i has its first point at coordinate 2*dim*i and its second point right after that,
+ * and its color is stored as an ARGB value.  The arrays grow by doubling and never shrink.
  */
 
 public class LineBuffer implements IDraw {
@@ -14,79 +15,186 @@ public class LineBuffer implements IDraw {
 // --- fields ---
 
    private int dim;
-   private Vector lines;
+   private double[] coord;
+   private int[] color;
    private int size;
 
+   // the stages pass ARGB values along, so we need a way back to color objects.
+   // colors are recorded as they come in, so normally nothing gets allocated here.
+   private int[] paletteKey;
+   private Color[] paletteValue; // null means empty slot
+   private int paletteSize;
+   private Color lastColor;
+
+   private static final int PALETTE_MAX = 4096;
+
 // --- construction ---
 
    public LineBuffer(int dim) {
       this.dim = dim;
-      lines = new Vector();
+      coord = new double[2*dim*64];
+      color = new int[64];
       size = 0;
+      paletteKey = new int[16];
+      paletteValue = new Color[16];
+      paletteSize = 0;
+   }
+
+   public int getDimension() {
+      return dim;
    }
 
 // --- methods for writing to the buffer ---
 
    public void clear() {
       size = 0;
-      // do not clear the vector, we reuse the elements
+      // do not release the arrays, we reuse them
+   }
+
+   private void ensureCapacity(int capacity) {
+      if (capacity <= color.length) return;
+      int len = Math.max(capacity,2*color.length);
+
+      double[] tempCoord = new double[2*dim*len];
+      System.arraycopy(coord,0,tempCoord,0,2*dim*size);
+      coord = tempCoord;
+
+      int[] tempColor = new int[len];
+      System.arraycopy(color,0,tempColor,0,size);
+      color = tempColor;
    }
 
    /**
-    * Get a line object to write into, allocating a new one if necessary.
+    * Add a line to the buffer.
+    * The coordinates are copied, so it is OK to keep and modify p1 and p2 after calling add.
     */
-   public Line getNext() {
-      Line line;
+   public void add(double[] p1, double[] p2, int rgb) {
+      ensureCapacity(size+1);
+      int base = 2*dim*size;
+      System.arraycopy(p1,0,coord,base,    dim);
+      System.arraycopy(p2,0,coord,base+dim,dim);
+      color[size++] = rgb;
+   }
 
-      if (size < lines.size()) {
-         line = (Line) lines.get(size);
+   public void add(double[] p1, double[] p2, Color color) {
+      add(p1,p2,toRGB(color));
+   }
 
-      } else { // size == lines.size()
-         line = new Line(new double[dim],new double[dim],null);
-         lines.add(line);
+   public void drawLine(double[] p1, double[] p2, Color color, double[] origin) {
+      ensureCapacity(size+1);
+      int base = 2*dim*size;
+      for (int i=0; i<dim; i++) {
+         coord[base    +i] = p1[i] - origin[i];
+         coord[base+dim+i] = p2[i] - origin[i];
       }
+      this.color[size++] = toRGB(color);
+   }
+
+   /**
+    * Replace the contents of this buffer with the contents of another one.
+    */
+   public void copy(LineBuffer src) {
+      if (src.dim != dim) throw new IllegalArgumentException();
+      size = 0;
+      ensureCapacity(src.size);
+      System.arraycopy(src.coord,0,coord,0,2*dim*src.size);
+      System.arraycopy(src.color,0,color,0,src.size);
+      size = src.size;
+   }
+
+   /**
+    * Add the contents of another buffer to the end of this one.
+    */
+   public void append(LineBuffer src) {
+      if (src.dim != dim) throw new IllegalArgumentException();
+      ensureCapacity(size+src.size);
+      System.arraycopy(src.coord,0,coord,2*dim*size,2*dim*src.size);
+      System.arraycopy(src.color,0,color,size,src.size);
+      size += src.size;
+   }
+
+// --- methods for reading from the buffer ---
 
-      size++;
-      return line;
+   public int size() {
+      return size;
    }
 
    /**
-    * Back up after a call to getNext turns out to be unnecessary.
+    * Copy the endpoints of line i into p1 and p2.
     */
-   public void unget() {
-      size--;
+   public void get(int i, double[] p1, double[] p2) {
+      int base = 2*dim*i;
+      System.arraycopy(coord,base,    p1,0,dim);
+      System.arraycopy(coord,base+dim,p2,0,dim);
    }
 
    /**
-    * Add a line to the buffer.
-    * Ownership of the arguments p1 and p2 is not transferred,
-    * so it is OK to keep and modify them after calling add.
+    * @return The coordinate array.  Not a copy!  Only valid until the next add.
     */
-   public void add(double[] p1, double[] p2, Color color) {
-      Line line = getNext();
+   public double[] getCoordinates() {
+      return coord;
+   }
 
-      System.arraycopy(p1,0,line.p1,0,dim);
-      System.arraycopy(p2,0,line.p2,0,dim);
-      line.color = color;
+   public int getRGB(int i) {
+      return color[i];
    }
 
-   public void drawLine(double[] p1, double[] p2, Color color, double[] origin) {
-      Line line = getNext();
+   public Color getColor(int i) {
+      return toColor(color[i]);
+   }
+
+// --- palette ---
 
-      Vec.sub(line.p1,p1,origin);
-      Vec.sub(line.p2,p2,origin);
-      line.color = color;
+   private int toRGB(Color c) {
+      if (c != lastColor) { // cheap test since colors come in runs
+         lastColor = c;
+         if (find(c.getRGB()) == null) put(c.getRGB(),c);
+      }
+      return c.getRGB();
    }
 
-// --- methods for reading from the buffer ---
+   private Color toColor(int rgb) {
+      Color c = find(rgb);
+      if (c == null) { // only when lines arrived as bare ARGB values
+         c = new Color(rgb,/* hasalpha = */ true);
+         put(rgb,c);
+      }
+      return c;
+   }
 
-   public int size() {
-      return size;
+   private int slot(int rgb) {
+      int mask = paletteKey.length-1;
+      int h = (rgb * 0x9E3779B9) >>> 16 & mask;
+      while (paletteValue[h] != null && paletteKey[h] != rgb) h = (h+1) & mask;
+      return h;
    }
 
-   public Line get(int i) {
-      return (Line) lines.get(i);
+   private Color find(int rgb) {
+      return paletteValue[slot(rgb)];
    }
 
-}
+   private void put(int rgb, Color c) {
+      if (paletteSize == PALETTE_MAX) { // something is generating colors, start over
+         paletteKey = new int[16];
+         paletteValue = new Color[16];
+         paletteSize = 0;
+      }
+      if (2*(paletteSize+1) > paletteKey.length) {
+         int[] keyOld = paletteKey;
+         Color[] valueOld = paletteValue;
+         paletteKey = new int[2*keyOld.length];
+         paletteValue = new Color[2*keyOld.length];
+         for (int i=0; i<keyOld.length; i++) {
+            if (valueOld[i] == null) continue;
+            int h = slot(keyOld[i]);
+            paletteKey[h] = keyOld[i];
+            paletteValue[h] = valueOld[i];
+         }
+      }
+      int h = slot(rgb);
+      paletteKey[h] = rgb;
+      paletteValue[h] = c;
+      paletteSize++;
+   }
 
+}
@@ -0,0 +1,61 @@
+/*
+ * LoadProgress.java
+ */
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a scene load that's running on another thread.
+ * The loading threads add to the counts as they go, and the user interface
+ * just polls them, so there's no need for any locking.  Cancelling only
+ * sets a flag; the loading threads notice it the next time they call check.
+ * There's more than one loading thread when includes are prefetched,
+ * see IncludeCache.prefetch.
+ */
+
+public class LoadProgress {
+
+// --- fields ---
+
+   private AtomicLong chars = new AtomicLong(); // characters of scene text read so far
+   private volatile int shapes; // shapes going into the model, zero until then
+   private volatile boolean cancelled;
+
+// --- loading thread ---
+
+   public void addChars(long n) {
+      chars.addAndGet(n);
+   }
+
+   public void setShapes(int shapes) {
+      this.shapes = shapes;
+   }
+
+   /**
+    * Stop the load if it's been cancelled.
+    */
+   public void check() {
+      if (cancelled) throw new CancellationException();
+   }
+
+// --- other threads ---
+
+   public long getChars() {
+      return chars.get();
+   }
+
+   public int getShapes() {
+      return shapes;
+   }
+
+   public void cancel() {
+      cancelled = true;
+   }
+
+   public boolean isCancelled() {
+      return cancelled;
+   }
+
+}
+
@@ -2,6 +2,8 @@
  * Map.java
  */
 
+import java.nio.ByteBuffer;
+
 /**
  * An object that contains map data.
  */
@@ -21,6 +23,14 @@ public class Map {
    public boolean isOpen(int[] p) { return map.get(p); }
    public void   setOpen(int[] p, boolean b) { map.set(p,b); } // generator only
 
+   // linear indices, for code that walks around the map a step at a time
+   public int index(int[] p) { return map.index(p); }
+   public int getStep(int dir) { return map.getStep(dir); }
+   public boolean isOpen(int i) { return map.get(i); }
+   public void   setOpen(int i, boolean b) { map.set(i,b); } // generator only
+   public void getCell(int[] dest, int i) { map.coordinates(dest,i); }
+   public int getCellCount() { return map.getCount(); }
+
    public int[] getStart () { return start;  }
    public int[] getFinish() { return finish; }
 
@@ -41,38 +51,67 @@ public class Map {
       new MapGenerator(this,limits,om,seed).generate();
    }
 
-   private static final String KEY_MAP    = "map";
-   private static final String KEY_START  = "start";
-   private static final String KEY_FINISH = "finish";
+   /**
+    * Construct a map from a saved maze, see MazeFile.
+    * The start and finish come from the store, the cells from the buffer.
+    */
+   public Map(int dimSpace, OptionsMap om, ByteBuffer cells, IStore store) throws ValidationException {
+
+      int[] limits = DynamicArray.makeLimits(om.size);
+
+      map = new DynamicArray.OfBoolean(dimSpace,limits);
 
-   public void save(IStore store, OptionsMap om) throws ValidationException {
-      boolean[][][][] cells = new boolean[om.size[0]][][][];
-      for (int i = 0; i < om.size[0]; i++) {
-         cells[i] = new boolean[om.size[1]][][];
-         for (int j = 0; j < om.size[1]; j++) {
-            cells[i][j] = new boolean[om.size[2]][];
-            for (int k = 0; k < om.size[2]; k++) {
-               cells[i][j][k] = new boolean[om.size[3]];
-            }
-         }
+      boolean match = (cells.remaining() >= 4*(dimSpace+1) && cells.getInt() == dimSpace);
+      for (int i=0; i<dimSpace && match; i++) {
+         if (cells.getInt() != limits[i]) match = false;
       }
-      int[] p = new int[4];
-      for (int i = 0; i < om.size[0]; i++) {
-         p[0] = i + 1;
-         for (int j = 0; j < om.size[1]; j++) {
-            p[1] = j + 1;
-            for (int k = 0; k < om.size[2]; k++) {
-               p[2] = k + 1;
-               for (int l = 0; l < om.size[2]; l++) {
-                  p[3] = l + 1;
-                  cells[i][j][k][l] = isOpen(p);
-               }
-            }
-         }
+      if ( ! match || ! map.read(cells) || cells.hasRemaining() ) throw App.getException("Map.e1");
+
+      // the renderer and the collision code count on there being walls all around.
+      // this also catches stray bits past the end.
+      int[] p = new int[dimSpace];
+      int count = map.getCount();
+      for (int i=0; i<count; i++) {
+         if ( ! map.get(i) ) continue;
+         map.coordinates(p,i);
+         if ( ! map.inBounds(p) ) throw App.getException("Map.e2");
       }
-      store.putObject(KEY_MAP,cells);
+      for (int i=count; i<((count+63) & ~63); i++) {
+         if (map.get(i)) throw App.getException("Map.e2");
+      }
+
+      start  = new int[dimSpace];
+      finish = new int[dimSpace];
+      store.getObject(KEY_START, start );
+      store.getObject(KEY_FINISH,finish);
+      if ( ! inBounds(start ) || ! isOpen(start ) ) throw App.getException("Map.e3");
+      if ( ! inBounds(finish) || ! isOpen(finish) ) throw App.getException("Map.e3");
+   }
+
+   private static final String KEY_START  = "start";
+   private static final String KEY_FINISH = "finish";
+
+   /**
+    * Save the start and finish.  The cells don't fit well in a store,
+    * so they're saved separately, see save(ByteBuffer).
+    */
+   public void save(IStore store) throws ValidationException {
       store.putObject(KEY_START,start);
       store.putObject(KEY_FINISH,finish);
    }
+
+   public int getSaveSize() {
+      return 4*(map.getLimits().length+1) + map.getByteCount();
+   }
+
+   /**
+    * Save the cells, as the number of dimensions, the limits, and then the bits.
+    */
+   public void save(ByteBuffer cells) {
+      int[] limits = map.getLimits();
+      cells.putInt(limits.length);
+      for (int i=0; i<limits.length; i++) cells.putInt(limits[i]);
+      map.write(cells);
+   }
 }
 
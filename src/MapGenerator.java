@@ -2,7 +2,6 @@
  * MapGenerator.java
  */
 
-import java.util.LinkedList;
 import java.util.Random;
 
 /**
@@ -18,14 +17,12 @@ public class MapGenerator {
    private OptionsMap om;
    private Random random;
 
-   private LinkedList avail; // borers
-   private LinkedList reserve;
+   private BorerList avail; // borers
+   private BorerList reserve;
 
    private double singleBranchProbability;
 
-   private int[] reg1; // temporary registers
-   private int[] reg2;
-   private int[] reg3;
+   private int[] step; // change in map index for each direction
 
 // --- construction ---
 
@@ -35,14 +32,13 @@ public class MapGenerator {
       this.om = om;
       this.random = new Random(seed);
 
-      avail = new LinkedList();
-      reserve = new LinkedList();
+      avail = new BorerList();
+      reserve = new BorerList();
 
       singleBranchProbability = computeSingleBranchProbability();
 
-      reg1 = new int[limits.length]; // dimSpace
-      reg2 = new int[limits.length];
-      reg3 = new int[limits.length];
+      step = new int[2*limits.length]; // dimSpace
+      for (int dir=0; dir<step.length; dir++) step[dir] = map.getStep(dir);
 
       init();
    }
@@ -55,7 +51,7 @@ public class MapGenerator {
       map.setStart(start);
       map.setOpen (start,true);
 
-      branch(start,Dir.DIR_NONE,Dir.DIR_NONE);
+      branch(map.index(start),Dir.DIR_NONE,Dir.DIR_NONE);
       //
       // it doesn't really matter whether the new borers are available or on reserve,
       // this is just a convenient and uniform way to create them
@@ -65,35 +61,154 @@ public class MapGenerator {
    }
 
    public void generate() {
-      int[] finish = null;
+      int finish = -1;
 
       int count = computeCount();
       while (count-- > 0) {
 
-         Borer borer = pickBorer();
-         if (borer == null) break; // ran out
+         int i = pickBorer();
+         if (i == -1) break; // ran out
 
-         bore(borer);
-         finish = borer.p; // OK to share
+         bore(i);
+         finish = getCell(avail.get(i));
       }
 
-      map.setFinish(finish);
+      int[] p = null;
+      if (finish != -1) {
+         p = new int[limits.length];
+         map.getCell(p,finish);
+      }
+      map.setFinish(p);
    }
 
-// --- borer class ---
+// --- borers ---
+
+   // a borer is just a cell and a direction, so we pack it into an int
+   // as map index * 8 + direction, unsigned.  that leaves room for 2^29 cells.
+
+   private static int makeBorer(int cell, int dir) { return (cell << 3) | dir; }
+   private static int getCell(int borer) { return borer >>> 3; }
+   private static int getDir (int borer) { return borer & 7; }
 
-   private static class Borer {
+   /**
+    * A list of borers that can pick the k-th remaining one and remove it
+    * quickly.  We can't just swap the last entry into the hole the way
+    * you'd normally do, because the random picks are by position, and then
+    * every saved seed would produce a different maze.  So the entries stay
+    * in the order they were added, dead ones are marked in a bit set, and
+    * a tree of counts with 64 children per node keeps track of the live ones.
+    * Now and then we squeeze out the dead entries.
+    */
+   private static class BorerList {
+
+      private int[] data;    // borers, in the order they were added
+      private long[] alive;  // one bit per entry
+      private int[][] count; // live entries per block of 64, then per 64 blocks, and so on
+      private int n;         // entries used
+      private int live;
+
+      public BorerList() {
+         data = new int[64];
+         alive = new long[1];
+         rebuild();
+      }
 
-      public int[] p;
-      public int dir;
+      public int size() { return live; }
+      public boolean isEmpty() { return (live == 0); }
+
+      public int get(int i) { return data[i]; }
+      public void set(int i, int borer) { data[i] = borer; }
+
+      /**
+       * @return The index of the new entry.
+       */
+      public int add(int borer) {
+         if (n == data.length) grow();
+         data[n] = borer;
+         alive[n >> 6] |= (1L << n);
+         update(n,1);
+         live++;
+         return n++;
+      }
 
-      public Borer(int[] p, int dir) {
-         this.p = (int[]) p.clone();
-         this.dir = dir;
+      public void remove(int i) {
+         alive[i >> 6] &= ~(1L << i);
+         update(i,-1);
+         live--;
       }
 
-      public void move(int distance) {
-         Dir.apply(dir,p,distance);
+      /**
+       * @return The index of the k-th live entry, counting from zero.
+       */
+      public int find(int k) {
+
+         // walk down the tree to find the block
+         int j = 0;
+         for (int l=count.length-1; l>=0; l--) {
+            int[] c = count[l];
+            j <<= 6;
+            while (k >= c[j]) k -= c[j++];
+         }
+
+         // then find the bit within the block
+         long word = alive[j];
+         while (k-- > 0) word &= word-1;
+         return (j << 6) + Long.numberOfTrailingZeros(word);
+      }
+
+      /**
+       * Squeeze out the dead entries, if there are enough of them to be worth it.
+       * This changes the indices, so don't hold on to any across a call.
+       */
+      public void compact() {
+         if (n - live <= live || n < 1024) return;
+
+         int j = 0;
+         for (int i=0; i<n; i++) {
+            if ((alive[i >> 6] & (1L << i)) != 0) data[j++] = data[i];
+         }
+         n = j;
+
+         for (int b=0; b<alive.length; b++) alive[b] = 0;
+         for (int i=0; i<n; i++) alive[i >> 6] |= (1L << i);
+         rebuild();
+      }
+
+      private void grow() {
+         int[] temp = new int[2*data.length];
+         System.arraycopy(data,0,temp,0,n);
+         data = temp;
+
+         long[] tempAlive = new long[temp.length >> 6];
+         System.arraycopy(alive,0,tempAlive,0,alive.length);
+         alive = tempAlive;
+
+         rebuild();
+      }
+
+      private void update(int i, int delta) {
+         for (int l=0; l<count.length; l++) {
+            i >>= 6;
+            count[l][i] += delta;
+         }
+      }
+
+      private void rebuild() {
+
+         // the top level is always a single node, which makes find simpler
+         int levels = 1;
+         for (int len = alive.length; len > 1; len = (len+63) >> 6) levels++;
+         count = new int[levels][];
+
+         count[0] = new int[alive.length];
+         for (int b=0; b<alive.length; b++) count[0][b] = Long.bitCount(alive[b]);
+
+         for (int l=1; l<levels; l++) {
+            int[] below = count[l-1];
+            int[] c = new int[(below.length+63) >> 6];
+            for (int j=0; j<below.length; j++) c[j >> 6] += below[j];
+            count[l] = c;
+         }
       }
    }
 
@@ -149,14 +264,19 @@ public class MapGenerator {
 
 // --- helpers part 1 ---
 
-   private Borer pickBorer() {
+   /**
+    * @return The index of the borer in the available list, or -1 if there are none left.
+    */
+   private int pickBorer() {
+
+      avail.compact();
+      reserve.compact();
 
       while ( ! avail.isEmpty() ) {
-         int i = random.nextInt(avail.size());
-         Borer borer = (Borer) avail.get(i);
+         int i = avail.find(random.nextInt(avail.size()));
 
-         if (usable(borer)) {
-            return borer; // done
+         if (usable(avail.get(i))) {
+            return i; // done
 
          } else { // borer can never become usable, remove it
             avail.remove(i);
@@ -164,40 +284,40 @@ public class MapGenerator {
       }
 
       while ( ! reserve.isEmpty() ) {
-         int i = random.nextInt(reserve.size());
-         Borer borer = (Borer) reserve.get(i);
+         int i = reserve.find(random.nextInt(reserve.size()));
+         int borer = reserve.get(i);
 
+         reserve.remove(i); // either way
          if (usable(borer)) {
-            reserve.remove(i); // move the borer to the available list, so that we will continue to use it
-            avail.add(borer);
-            return borer; // done
-
-         } else { // borer can never become usable, remove it
-            reserve.remove(i);
+            return avail.add(borer); // move the borer to the available list, so that we will continue to use it
          }
+         // else borer can never become usable, it's gone
       }
 
-      return null; // no more borers, can't reach desired density, sorry
+      return -1; // no more borers, can't reach desired density, sorry
    }
 
-   private void bore(Borer borer) {
+   private void bore(int i) {
+      int borer = avail.get(i);
+      int cell = getCell(borer);
+      int dir  = getDir (borer);
 
    // open new cell
 
-      borer.move(1);
-      map.setOpen(borer.p,true);
+      cell += step[dir];
+      map.setOpen(cell,true);
 
    // maybe turn
 
-      int dirBackward = Dir.getOpposite(borer.dir); // save for branching
+      int dirBackward = Dir.getOpposite(dir); // save for branching
 
       if (om.dimMap > 1 && random.nextDouble() < om.twistProbability) {
-         borer.dir = Dir.pickOrthogonal(borer.dir,om.dimMap,random);
+         dir = Dir.pickOrthogonal(dir,om.dimMap,random);
       }
 
    // maybe branch
 
-      branch(borer.p,borer.dir,dirBackward);
+      branch(cell,dir,dirBackward);
 
    // handle loops
 
@@ -206,15 +326,15 @@ public class MapGenerator {
       // so, in that case, maybe boost it forward one.
       // after that, it's on its own, even though it might still die
 
-      borer.move(1);
-
-      if ( ! (    map.isOpen(borer.p)
-               && random.nextDouble() < om.loopCrossProbability) ) {
-         borer.move(-1);
+      if (    map.isOpen(cell+step[dir])
+           && random.nextDouble() < om.loopCrossProbability ) {
+         cell += step[dir];
       }
 
       // note that if we move forward into an open cell,
       // that cell has already been branched, no need to do it again
+
+      avail.set(i,makeBorer(cell,dir));
    }
 
    /**
@@ -223,7 +343,7 @@ public class MapGenerator {
     * The branch probability is used
     * to determine whether the new borers are available.
     */
-   private void branch(int[] p, int dirForward, int dirBackward) {
+   private void branch(int cell, int dirForward, int dirBackward) {
 
       for (int dir=0; dir<2*om.dimMap; dir++) { // no need to consider non-map directions
 
@@ -233,7 +353,7 @@ public class MapGenerator {
          //
          if (dir == dirForward || dir == dirBackward) continue;
 
-         Borer borer = new Borer(p,dir);
+         int borer = makeBorer(cell,dir);
          if (random.nextDouble() < singleBranchProbability) {
             avail.add(borer);
          } else {
@@ -244,31 +364,34 @@ public class MapGenerator {
 
 // --- helpers part 2 ---
 
-   // use registers to avoid accidentally making a permanent change to the borer location
-   // without doing a lot of memory allocation
+   // everything here works on map indices.  a borer is always in the interior,
+   // so the cells next to it and diagonal from it are all inside the array,
+   // though they may be on the boundary.
 
-   private boolean usable(Borer borer) {
-      Grid.copy(reg1,borer.p);
-      Dir.apply(borer.dir,reg1,1);
+   private boolean usable(int borer) {
+      int dir = getDir(borer);
+      int cell = getCell(borer) + step[dir];
 
       // don't go out of bounds
-      if ( ! DynamicArray.inBounds(reg1,limits) ) return false;
+      // only the coordinate along the direction changed, so that's the only one to check
+      int a = Dir.getAxis(dir);
+      int c = (cell / Math.abs(step[dir])) % limits[a];
+      if (c < 1 || c > limits[a]-2) return false;
 
       // never re-open the same cell
       // (looping is when you open a cell <i>adjacent to</i> an open one)
-      if (map.isOpen(reg1)) return false;
+      if (map.isOpen(cell)) return false;
 
       // loop test is faster than square test, try it first
-      if ( ! om.allowLoops && wouldMakeLoop(reg1,Dir.getOpposite(borer.dir)) ) return false;
+      if ( ! om.allowLoops && wouldMakeLoop(cell,Dir.getOpposite(dir)) ) return false;
 
       // prevent squares (and rooms), just because it is technically very convenient
-      if (wouldMakeSquare(reg1)) return false;
+      if (wouldMakeSquare(cell)) return false;
 
       return true;
    }
 
-   private boolean wouldMakeLoop(int[] base, int dirBackward) {
-      Grid.copy(reg2,base);
+   private boolean wouldMakeLoop(int base, int dirBackward) {
 
       // it's a loop if any adjacent cell is already open
       // (not counting the one we just came from)
@@ -276,16 +399,13 @@ public class MapGenerator {
       for (int dir=0; dir<2*om.dimMap; dir++) { // no need to consider non-map directions
          if (dir == dirBackward) continue;
 
-         Dir.apply(dir,reg2,1);
-         if (map.isOpen(reg2)) return true;
-         Dir.apply(dir,reg2,-1);
+         if (map.isOpen(base+step[dir])) return true;
       }
 
       return false;
    }
 
-   private boolean wouldMakeSquare(int[] base) {
-      Grid.copy(reg2,base);
+   private boolean wouldMakeSquare(int base) {
 
       // the plan is, look for an adjacent empty square to use as an axis,
       // then look for squares attached to that axis
@@ -294,28 +414,24 @@ public class MapGenerator {
 
       for (int dir=0; dir<2*om.dimMap; dir++) {
 
-         Dir.apply(dir,reg2,1);
-         if (map.isOpen(reg2) && wouldMakeSquare(base,dir)) return true;
-         Dir.apply(dir,reg2,-1);
+         if (map.isOpen(base+step[dir]) && wouldMakeSquare(base,dir)) return true;
       }
 
       return false;
    }
 
-   private boolean wouldMakeSquare(int[] base, int dirAxis) {
+   private boolean wouldMakeSquare(int base, int dirAxis) {
 
       // optimization, only need to look for squares in higher-numbered directions
 
       for (int dir=dirAxis+1; dir<2*om.dimMap; dir++) {
          if (Dir.isOpposite(dir,dirAxis)) continue;
 
-         Grid.copy(reg3,base);
-
-         Dir.apply(dir,reg3,1);
-         if ( ! map.isOpen(reg3) ) continue;
+         int cell = base+step[dir];
+         if ( ! map.isOpen(cell) ) continue;
 
-         Dir.apply(dirAxis,reg3,1);
-         if ( ! map.isOpen(reg3) ) continue;
+         cell += step[dirAxis];
+         if ( ! map.isOpen(cell) ) continue;
 
          return true;
       }
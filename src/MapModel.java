@@ -2,6 +2,8 @@
  * MapModel.java
  */
 
+import java.nio.ByteBuffer;
+
 /**
  * A model that lets the user move through a maze.
  */
@@ -17,8 +19,19 @@ public class MapModel implements IModel {
 // --- construction ---
 
    public MapModel(int dimSpace, OptionsMap om, OptionsColor oc, OptionsSeed oe, OptionsView ov) {
+      this(dimSpace,new Map(dimSpace,om,oe.mapSeed),om,oc,oe,ov);
+   }
+
+   /**
+    * Construct a model for a saved maze, see MazeFile.
+    */
+   public MapModel(int dimSpace, OptionsMap om, OptionsColor oc, OptionsSeed oe, OptionsView ov, ByteBuffer cells, IStore store) throws ValidationException {
+      this(dimSpace,new Map(dimSpace,om,cells,store),om,oc,oe,ov);
+   }
 
-      map = new Map(dimSpace,om,oe.mapSeed);
+   private MapModel(int dimSpace, Map map, OptionsMap om, OptionsColor oc, OptionsSeed oe, OptionsView ov) {
+
+      this.map = map;
       colorizer = new Colorizer(dimSpace,om.dimMap,om.size,oc,oe.colorSeed);
       renderAbsolute = new RenderAbsolute(dimSpace,map,colorizer,ov);
    }
@@ -54,6 +67,7 @@ public class MapModel implements IModel {
 
    public void setColorMode(int colorMode) {
       colorizer.setColorMode(colorMode);
+      renderAbsolute.invalidate();
    }
 
    public void setDepth(int depth) {
@@ -101,8 +115,12 @@ public class MapModel implements IModel {
       renderAbsolute.run(origin);
    }
 
-   public void save(IStore store, OptionsMap om) throws ValidationException {
-      map.save(store, om);
+   public Map getMap() {
+      return map;
+   }
+
+   public void save(IStore store) throws ValidationException {
+      map.save(store);
    }
 }
 
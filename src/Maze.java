@@ -50,6 +50,8 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
    private Core core;
 
    private File reloadFile;
+   private LoadProgress loadProgress; // scene load in progress, or null
+   private DialogLoad dialogLoad;
 
 // --- construction ---
 
@@ -258,14 +260,17 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
    }
 
    public void doNew() {
+      cancelLoad();
       core.newGame(0);
    }
 
    private void doNew3D() {
+      cancelLoad();
       core.newGame(3);
    }
 
    private void doNew4D() {
+      cancelLoad();
       core.newGame(4);
    }
 
@@ -294,7 +299,11 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
       File file = chooser.getSelectedFile();
 
       try {
-         if (PropertyFile.test(file)) {
+         if (MazeFile.test(file)) {
+            cancelLoad();
+            MazeFile.load(file,core);
+         } else if (PropertyFile.test(file)) { // old saved maze
+            cancelLoad();
             PropertyFile.load(file,core);
          } else {
             reloadFile = file; // remember it before loading, so if there are errors you can still retry with reload
@@ -344,9 +353,48 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
       doLoadGeom(reloadFile);
    }
 
-   private void doLoadGeom(File file) {
+   /**
+    * Start loading a scene on a thread of its own.  The current game keeps
+    * running until the new model is completely built, and then finishLoad
+    * switches over on the event thread.  Starting another load, or a new
+    * game, cancels this one.
+    */
+   private void doLoadGeom(final File file) {
+      cancelLoad();
+
+      final LoadProgress progress = new LoadProgress();
+      loadProgress = progress;
+      dialogLoad = new DialogLoad(this,file,progress);
+
+      Thread thread = new Thread(new Runnable() { public void run() { runLoad(file,progress); } },"Load");
+      thread.setDaemon(true); // don't hold up exit
+      thread.start();
+   }
+
+   private void runLoad(File file, final LoadProgress progress) { // load thread
+      GeomModel model = null;
+      Throwable error = null;
       try {
-         core.loadGeom(file);
+         model = Core.buildModel(Core.readGeom(file,progress));
+      } catch (Throwable t) {
+         error = t;
+      }
+
+      final GeomModel fModel = model;
+      final Throwable fError = error;
+      EventQueue.invokeLater(new Runnable() { public void run() { finishLoad(progress,fModel,fError); } });
+   }
+
+   private void finishLoad(LoadProgress progress, GeomModel model, Throwable error) {
+      if (progress != loadProgress) return; // another load took over
+      loadProgress = null;
+      dialogLoad.dispose();
+      dialogLoad = null;
+      if (progress.isCancelled()) return; // by the user, through the dialog
+
+      try {
+         if (error != null) throw error;
+         core.loadGeom(model);
       } catch (Throwable t) {
          String s = "";
          if (t instanceof LanguageException) {
@@ -359,6 +407,14 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
       }
    }
 
+   private void cancelLoad() {
+      if (loadProgress == null) return;
+      loadProgress.cancel(); // harmless if the load is already done
+      loadProgress = null;
+      dialogLoad.dispose();
+      dialogLoad = null;
+   }
+
    private void doSaveGeom(File file) {
       try {
          core.saveGeom(file);
@@ -371,17 +427,12 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
    }
 
    public int doSelectShape(ISelectShape iss) {
-      int quantity = new DialogSelectShape(this,iss).run();
-      if (quantity != -1) core.forceClockStart();
-      // otherwise there's no tick to continue the command.
-      // this is too convoluted but let's just get it done.
-      return quantity;
+      return new DialogSelectShape(this,iss).run();
+      // the controller starts the clock to continue the command
    }
 
    public boolean doSelectPaint(ISelectShape iss) {
-      boolean b = new DialogSelectPaint(this,iss).run();
-      if (b) core.forceClockStart(); // comment above
-      return b;
+      return new DialogSelectPaint(this,iss).run(); // comment above
    }
 
    private void doSave() {
@@ -404,7 +455,7 @@ public class Maze extends JFrame implements SquareLayout.Observer, IDisplay, IMe
 
       try {
          if (saveType == IModel.SAVE_MAZE) {
-            PropertyFile.save(file,core);
+            core.saveMaze(file);
          } else {
             doSaveGeom(file);
             // this handles exceptions internally, but no harm in having an extra layer here
@@ -0,0 +1,185 @@
+/*
+ * MazeFile.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * A utility class for loading and saving mazes in binary form.<p>
+ *
+ * Mazes used to be saved as property files, with the options and the
+ * position in the usual form and then one property per cell, which made
+ * four-dimensional mazes enormous.  Now everything but the cells goes into
+ * a property block just like before, and the cells go after it as bits.
+ * Old property files can still be loaded with PropertyFile; then the maze
+ * is generated from the seed, which is all that ever happened anyway.<p>
+ *
+ * The layout, all big-endian:
+ * <pre>
+ *    int    magic number, "MAZE"
+ *    int    version
+ *    int    length of property block, then the block, in property file form
+ *    int    length of cell block, then the block, see Map.save(ByteBuffer)
+ *    int    CRC-32 of everything above
+ * </pre>
+ */
+
+public class MazeFile {
+
+// --- constants ---
+
+   private static final int MAGIC = 0x4D415A45; // "MAZE"
+   private static final int VERSION = 1;
+
+   private static final int HEADER = 8;
+
+// --- main functions ---
+
+   public static boolean test(File file) throws ValidationException {
+      try {
+
+         FileChannel channel = null;
+         try {
+            channel = new FileInputStream(file).getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            while (buf.hasRemaining() && channel.read(buf) != -1) ;
+            return ( ! buf.hasRemaining() && buf.getInt(0) == MAGIC );
+         } finally {
+            if (channel != null) channel.close();
+         }
+
+      } catch (IOException e) {
+         throw App.getException("MazeFile.e5",new Object[] { file.getName(), e.getMessage() });
+      }
+   }
+
+   public static void load(File file, Core core) throws ValidationException {
+      ByteBuffer buf;
+
+      try {
+         buf = read(file);
+      } catch (IOException e) {
+         throw App.getException("MazeFile.e1",new Object[] { file.getName(), e.getMessage() });
+      }
+
+   // check the framing before anything else looks at the contents
+
+      if (buf.remaining() < HEADER + 4 || buf.getInt() != MAGIC) throw App.getException("MazeFile.e7",new Object[] { file.getName() });
+      if (buf.getInt() > VERSION) throw App.getException("MazeFile.e6",new Object[] { file.getName() });
+
+      int end = buf.limit() - 4;
+      CRC32 crc = new CRC32();
+      crc.update(buf.array(),0,end);
+      if ((int) crc.getValue() != buf.getInt(end)) throw App.getException("MazeFile.e7",new Object[] { file.getName() });
+
+      ByteBuffer props = getBlock(buf,end);
+      ByteBuffer cells = getBlock(buf,end);
+      if (props == null || cells == null || buf.position() != end) throw App.getException("MazeFile.e7",new Object[] { file.getName() });
+
+   // now it's just like loading a property file
+
+      Properties p = new Properties();
+      try {
+         p.load(new ByteArrayInputStream(props.array(),props.arrayOffset(),props.remaining()));
+      } catch (IOException e) {
+         throw App.getException("MazeFile.e1",new Object[] { file.getName(), e.getMessage() });
+      }
+
+      try {
+         PropertyStore store = new PropertyStore(p);
+         core.load(store,cells);
+      } catch (ValidationException e) {
+         throw App.getException("MazeFile.e2",new Object[] { file.getName(), e.getMessage() });
+      }
+   }
+
+   public static void save(File file, IStorable storable, Map map) throws ValidationException {
+      byte[] props;
+
+      try {
+         Properties p = new Properties();
+         PropertyStore store = new PropertyStore(p);
+         storable.save(store);
+
+         ByteArrayOutputStream stream = new ByteArrayOutputStream();
+         p.store(stream,null);
+         props = stream.toByteArray();
+
+      } catch (ValidationException e) {
+         throw App.getException("MazeFile.e3",new Object[] { file.getName(), e.getMessage() });
+      } catch (IOException e) { // can't happen with a byte array
+         throw App.getException("MazeFile.e3",new Object[] { file.getName(), e.getMessage() });
+      }
+
+      int size = map.getSaveSize();
+      ByteBuffer buf = ByteBuffer.allocate(HEADER + 4 + props.length + 4 + size + 4);
+
+      buf.putInt(MAGIC);
+      buf.putInt(VERSION);
+      buf.putInt(props.length);
+      buf.put(props);
+      buf.putInt(size);
+      map.save(buf);
+
+      CRC32 crc = new CRC32();
+      crc.update(buf.array(),0,buf.position());
+      buf.putInt((int) crc.getValue());
+      buf.flip();
+
+      try {
+         write(file,buf);
+      } catch (IOException e) {
+         throw App.getException("MazeFile.e4",new Object[] { file.getName(), e.getMessage() });
+      }
+   }
+
+// --- helpers ---
+
+   /**
+    * @return A buffer over the next length-prefixed block, or null if the length is bad.
+    */
+   private static ByteBuffer getBlock(ByteBuffer buf, int end) {
+      if (end - buf.position() < 4) return null;
+      int length = buf.getInt();
+      if (length < 0 || length > end - buf.position()) return null;
+
+      ByteBuffer block = buf.slice();
+      block.limit(length);
+      buf.position(buf.position() + length);
+      return block;
+   }
+
+   private static ByteBuffer read(File file) throws IOException {
+      FileChannel channel = null;
+      try {
+         channel = new FileInputStream(file).getChannel();
+
+         long size = channel.size();
+         if (size > Integer.MAX_VALUE) throw new IOException(App.getString("MazeFile.s1"));
+
+         ByteBuffer buf = ByteBuffer.allocate((int) size);
+         while (buf.hasRemaining() && channel.read(buf) != -1) ;
+         buf.flip();
+         return buf;
+
+      } finally {
+         if (channel != null) channel.close();
+      }
+   }
+
+   private static void write(File file, ByteBuffer buf) throws IOException {
+      FileChannel channel = null;
+      try {
+         channel = new FileOutputStream(file).getChannel();
+         while (buf.hasRemaining()) channel.write(buf);
+      } finally {
+         if (channel != null) channel.close();
+      }
+   }
+
+}
+
@@ -17,26 +17,49 @@ import java.awt.event.*;
  * with (-1,-1) being the <i>lower</i> left.<p>
  *
  * The lines are drawn into the full extent of the panel, regardless of aspect ratio.
- * If you want a 1:1 ratio, you must arrange for the panel to be square.
+ * If you want a 1:1 ratio, you must arrange for the panel to be square.<p>
+ *
+ * New lines usually come from the clock thread, not the event thread,
+ * so there are three buffers.  The caller fills the back buffer and swaps it
+ * with the ready buffer, and painting swaps the ready buffer with the front one.
+ * Neither side ever waits for the other to finish with a frame.
  */
 
 public class PanelLine extends JComponent {
 
 // --- fields ---
 
-   private LineBuffer buf;
+   private LineBuffer back;  // setLines only
+   private LineBuffer ready; // synchronized access
+   private boolean fresh;    // ditto, true if ready has a frame that front doesn't
+   private LineBuffer buf;   // front, painting only
    private boolean redraw;
    private BufferedImage image;
 
+   private double[] src1; // temporary registers
+   private double[] src2;
+   private double[] dest1;
+   private double[] dest2;
+
+   private static final int RGB_WHITE = Color.white.getRGB();
+
 // --- construction ---
 
    public PanelLine() {
       setOpaque(true);
       setBackground(Color.black);
 
-      buf = new LineBuffer(2);
+      back  = new LineBuffer(2);
+      ready = new LineBuffer(2);
+      buf   = new LineBuffer(2);
+      fresh = false;
       redraw = true;
       image = null; // this also causes redraw
+
+      src1 = new double[2];
+      src2 = new double[2];
+      dest1 = new double[2];
+      dest2 = new double[2];
    }
 
 // --- methods ---
@@ -47,19 +70,33 @@ public class PanelLine extends JComponent {
    }
 
    public void setLines(LineBuffer in) {
-      buf.clear();
+      back.clear();
 
       for (int i=0; i<in.size(); i++) {
-         Line src = in.get(i);
-         Line dest = buf.getNext();
-
-         adjust(dest.p1,src.p1);
-         adjust(dest.p2,src.p2);
-         dest.color = src.color;
+         in.get(i,src1,src2);
+         adjust(dest1,src1);
+         adjust(dest2,src2);
+         back.add(dest1,dest2,in.getRGB(i));
       }
 
+      publish();
+      repaint(); // thread-safe
+   }
+
+   private synchronized void publish() {
+      LineBuffer temp = ready;
+      ready = back;
+      back = temp;
+      fresh = true; // if the old ready frame was never painted, it's just skipped
+   }
+
+   private synchronized void acquire() {
+      if ( ! fresh ) return;
+      LineBuffer temp = buf;
+      buf = ready;
+      ready = temp;
+      fresh = false;
       redraw = true;
-      repaint();
    }
 
 // --- painting ---
@@ -81,6 +118,8 @@ public class PanelLine extends JComponent {
 
    public void paintComponent(Graphics g) {
 
+      acquire();
+
       if (    image == null
            || image.getWidth () != getWidth ()
            || image.getHeight() != getHeight() ) {
@@ -115,28 +154,36 @@ public class PanelLine extends JComponent {
       // draw lines in two passes, so that intersections in 3D
       // (which are always with a colored line terminating in a white one)
       // show white regardless of order in which the lines were created
+      //
+      // the buffer only keeps ARGB values, so "white" here means any color
+      // with the value of Color.white, not just that one object like it used to.
+      // a color that's white by value looks the same on top anyway.
 
-      for (int i=0; i<buf.size(); i++) {
-         Line line = buf.get(i);
-         if (line.color == Color.white) continue;
-
-         g.setColor(line.color);
-         g.drawLine((int) (line.p1[0]*w), (int) (line.p1[1]*h),
-                    (int) (line.p2[0]*w), (int) (line.p2[1]*h));
-      }
-
-      for (int i=0; i<buf.size(); i++) {
-         Line line = buf.get(i);
-         if (line.color != Color.white) continue;
-
-         g.setColor(line.color);
-         g.drawLine((int) (line.p1[0]*w), (int) (line.p1[1]*h),
-                    (int) (line.p2[0]*w), (int) (line.p2[1]*h));
-      }
+      draw(g,w,h,/* white = */ false);
+      draw(g,w,h,/* white = */ true );
 
       g.translate(-insets.left,-insets.top); // this isn't necessary
       // now that we're drawing into a buffer, but it's easy and polite
    }
 
+   private void draw(Graphics g, int w, int h, boolean white) {
+      double[] coord = buf.getCoordinates();
+      int rgbCurrent = 0;
+      boolean first = true;
+
+      for (int i=0, base=0; i<buf.size(); i++, base+=4) {
+         int rgb = buf.getRGB(i);
+         if ((rgb == RGB_WHITE) != white) continue;
+
+         if (first || rgb != rgbCurrent) { // setColor is cheap, but getColor isn't free
+            g.setColor(buf.getColor(i));
+            rgbCurrent = rgb;
+            first = false;
+         }
+         g.drawLine((int) (coord[base  ]*w), (int) (coord[base+1]*h),
+                    (int) (coord[base+2]*w), (int) (coord[base+3]*h));
+      }
+   }
+
 }
 
@@ -341,6 +341,7 @@ public class Platform {
       shape = extend(shape,height,thickness);
       shape.noUserMove = true;
       if (track.getPlatformColor() != null) shape.setShapeColor(track.getPlatformColor());
+      shape.unshareGeometry(); // not in the ideal
       shape.face[shape.face.length-1].customTexture = track.new TileTexture(tiles,height);
       return shape;
    }
@@ -1505,6 +1506,7 @@ public class Platform {
          }
 
          Geom.Shape shape = (Geom.Shape) ((Geom.CompositeShape) ramp).component[i];
+         shape.unshareGeometry(); // not in the ideal
          shape.face[0].customTexture = track.new RampTexture(tn.union(ts));
       }
 
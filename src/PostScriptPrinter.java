@@ -188,11 +188,14 @@ public class PostScriptPrinter {
 
       color = null; // force respecification (and blank line)
 
+      double[] p1 = new double[2];
+      double[] p2 = new double[2];
+
       for (int i=0; i<buf.size(); i++) {
-         Line line = buf.get(i);
+         buf.get(i,p1,p2);
 
-         if (color == null || ! line.color.equals(color)) {
-            color = line.color;
+         if (color == null || color.getRGB() != buf.getRGB(i)) {
+            color = buf.getColor(i);
 
             out.println();
             out.print  (format(convert(color.getRed()  )) + " ");
@@ -203,8 +206,8 @@ public class PostScriptPrinter {
          // we could join consecutive line segments,
          // but we would not be joining everything that shares the same point, so don't bother
 
-         out.print  (format(line.p1[0]) + " " + format(line.p1[1]) + " m ");
-         out.println(format(line.p2[0]) + " " + format(line.p2[1]) + " l");
+         out.print  (format(p1[0]) + " " + format(p1[1]) + " m ");
+         out.println(format(p2[0]) + " " + format(p2[1]) + " l");
       }
 
       out.println();
@@ -22,15 +22,27 @@ public class RenderAbsolute {
    private boolean[] texture;
 
    private int[] count; // direction use count
+   private int[] step; // change in map index for each direction
+   private int[] stackIp; // the traversal, one entry per depth, see build
+   private int[] stackDirPrev;
+   private int[] stackDir;
    private boolean[] useClip;
    private double[][] clip;
 
    private double[] origin; // temporary registers
    private double[] reg1;
    private double[] reg2;
+   private double[] line1; // line being added
+   private double[] line2;
    private int[] reg3;
    private int[] reg4;
 
+   // the lines only depend on the origin and the settings, and when you turn
+   // in place the origin doesn't change, so keep the last set of lines.
+   private LineBuffer cache;
+   private double[] cacheOrigin;
+   private boolean cacheValid;
+
 // --- construction ---
 
    public RenderAbsolute(int dim, Map map, IColorize colorizer, OptionsView ov) {
@@ -45,14 +57,25 @@ public class RenderAbsolute {
       setTexture(ov.texture);
 
       count = new int[2*dim]; // starts out zero
+      step = new int[2*dim];
+      for (int dir=0; dir<2*dim; dir++) step[dir] = map.getStep(dir);
+      stackIp = new int[OptionsView.DEPTH_MAX+1];
+      stackDirPrev = new int[OptionsView.DEPTH_MAX+1];
+      stackDir = new int[OptionsView.DEPTH_MAX+1];
       useClip = new boolean[OptionsView.DEPTH_MAX]; // starts out false
       clip = new double[OptionsView.DEPTH_MAX][dim];
 
       origin = new double[dim];
       reg1 = new double[dim];
       reg2 = new double[dim];
+      line1 = new double[dim];
+      line2 = new double[dim];
       reg3 = new int[dim];
       reg4 = new int[dim];
+
+      cache = new LineBuffer(dim);
+      cacheOrigin = new double[dim];
+      cacheValid = false;
    }
 
    public void setBuffer(LineBuffer buf) {
@@ -63,12 +86,21 @@ public class RenderAbsolute {
 
    public void setDepth(int depth) {
       depthMax = depth;
+      invalidate();
    }
 
    public void setTexture(boolean[] texture) {
       for (int i=0; i<10; i++) {
          this.texture[i] = texture[i];
       }
+      invalidate();
+   }
+
+   /**
+    * Forget the last set of lines.  Call this when the colors change.
+    */
+   public void invalidate() {
+      cacheValid = false;
    }
 
 // --- clipping ---
@@ -122,18 +154,14 @@ public class RenderAbsolute {
    }
 
    private void addLine(double[] p1, double[] p2, Color color) {
-      Line line = buf.getNext();
-
-      Vec.sub(line.p1,p1,origin);
-      Vec.sub(line.p2,p2,origin);
-      line.color = color;
+      Vec.sub(line1,p1,origin);
+      Vec.sub(line2,p2,origin);
 
       for (int i=0; i<OptionsView.DEPTH_MAX; i++) {
-         if (useClip[i] && Vec.clip(line.p1,line.p2,clip[i])) { // fully clipped?
-            buf.unget();
-            return;
-         }
+         if (useClip[i] && Vec.clip(line1,line2,clip[i])) return; // fully clipped?
       }
+
+      buf.add(line1,line2,color);
    }
 
 // --- faces ---
@@ -300,8 +328,31 @@ public class RenderAbsolute {
 
 // --- processing ---
 
-   private void build(int[] p, int depth, int dirPrev) {
-      for (int dir=0; dir<2*dim; dir++) {
+   /**
+    * Walk the corridors out from cell p, adding faces as we find them.
+    * This used to be recursive; now the stack arrays hold, for each depth,
+    * the map index of the cell, the direction we came in by, and the next
+    * direction to look in.  The cell coordinates are kept up to date in p.
+    */
+   private void build(int[] p, int ip, int dirPrev) {
+      int depth = 0;
+      stackIp[0] = ip;
+      stackDirPrev[0] = dirPrev;
+      stackDir[0] = 0;
+
+      while (depth >= 0) {
+         int dir = stackDir[depth]++;
+
+         if (dir == 2*dim) { // done with this cell, back out
+            if (depth > 0) {
+               int dirIn = stackDirPrev[depth];
+               count[Dir.getOpposite(dirIn)]--;
+               unclip(depth-1); // fast, just do in every case
+               Dir.apply(dirIn,p,-1);
+            }
+            depth--;
+            continue;
+         }
 
          // the count array keeps track of the opposites of the directions we've gone;
          // we no longer need to consider those directions.
@@ -309,35 +360,39 @@ public class RenderAbsolute {
          //
          if (count[dir] > 0) continue;
 
-         Dir.apply(dir,p,1);
+         if ( ! map.isOpen(stackIp[depth]+step[dir]) ) { // there is a wall
 
-         if ( ! map.isOpen(p) ) { // there is a wall
-
-            Dir.apply(dir,p,-1);
             addFace(p,dir);
 
          } else {                 // there is no wall
             if (depth < depthMax) {
+               Dir.apply(dir,p,1);
 
                // clip when we're going around a corner
                // note dir can't be opposite of dirPrev because of counting
                //
+               dirPrev = stackDirPrev[depth];
                if (dirPrev != Dir.DIR_NONE && dir != dirPrev) {
                   clip(depth,p,dirPrev,dir);
                }
 
                count[Dir.getOpposite(dir)]++; // exclude backward direction
-               build(p,depth+1,dir);
-               count[Dir.getOpposite(dir)]--;
 
-               unclip(depth); // fast, just do in every case
+               stackIp[depth+1] = stackIp[depth]+step[dir];
+               stackDirPrev[depth+1] = dir;
+               stackDir[depth+1] = 0;
+               depth++;
             }
-            Dir.apply(dir,p,-1);
          }
       }
    }
 
    public void run(double[] origin) {
+      if (cacheValid && Vec.exactlyEquals(origin,cacheOrigin)) {
+         buf.copy(cache);
+         return;
+      }
+
       buf.clear();
       Vec.copy(this.origin,origin);
 
@@ -345,18 +400,22 @@ public class RenderAbsolute {
       colorizer.setTrace(reg3);
       if (dir == Dir.DIR_NONE) {
 
-         build(reg3,0,Dir.DIR_NONE);
+         build(reg3,map.index(reg3),Dir.DIR_NONE);
 
       } else {
 
          count[dir]++; // dir points from reg3 to reg4, and that's not allowed
-         build(reg3,0,Dir.DIR_NONE); // all dirPrev does is produce clipping, and that's not needed
+         build(reg3,map.index(reg3),Dir.DIR_NONE); // all dirPrev does is produce clipping, and that's not needed
          count[dir]--;
 
          count[Dir.getOpposite(dir)]++; // now, from reg4, opposite isn't allowed
-         build(reg4,0,Dir.DIR_NONE);
+         build(reg4,map.index(reg4),Dir.DIR_NONE);
          count[Dir.getOpposite(dir)]--;
       }
+
+      cache.copy(buf);
+      Vec.copy(cacheOrigin,origin);
+      cacheValid = true;
    }
 
 }
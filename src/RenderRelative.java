@@ -21,6 +21,10 @@ public class RenderRelative {
    private double[][] clip;
    private double[] reg1; // temporary registers
    private double[] reg2;
+   private double[] reg3;
+   private double[] reg4;
+   private double[] reg5;
+   private double[] reg6;
 
 // --- construction ---
 
@@ -32,6 +36,10 @@ public class RenderRelative {
       clip = new double[2*(dim-1)][dim];
       reg1 = new double[dim];
       reg2 = new double[dim];
+      reg3 = new double[dim];
+      reg4 = new double[dim];
+      reg5 = new double[dim-1];
+      reg6 = new double[dim-1];
 
       setRetina(retina);
    }
@@ -67,18 +75,21 @@ public class RenderRelative {
    // and we know there are no lines through the origin
    // because we're not allowed to move onto the walls.
 
-   private boolean convert(Line dest, Line src, double[][] axis) {
+   /**
+    * Convert line i of the input buffer, leaving the result in reg5 and reg6.
+    */
+   private boolean convert(int i, double[][] axis) {
 
-      Vec.toAxisCoordinates(reg1,src.p1,axis);
-      Vec.toAxisCoordinates(reg2,src.p2,axis);
+      in.get(i,reg3,reg4);
+      Vec.toAxisCoordinates(reg1,reg3,axis);
+      Vec.toAxisCoordinates(reg2,reg4,axis);
 
-      for (int i=0; i<clip.length; i++) {
-         if (Vec.clip(reg1,reg2,clip[i])) return false;
+      for (int j=0; j<clip.length; j++) {
+         if (Vec.clip(reg1,reg2,clip[j])) return false;
       }
 
-      Vec.projectRetina(dest.p1,reg1,retina);
-      Vec.projectRetina(dest.p2,reg2,retina);
-      dest.color = src.color;
+      Vec.projectRetina(reg5,reg1,retina);
+      Vec.projectRetina(reg6,reg2,retina);
 
       return true;
    }
@@ -86,24 +97,17 @@ public class RenderRelative {
    public void run(double[][] axis) {
       out.clear();
       for (int i=0; i<in.size(); i++) {
-         Line src = in.get(i);
-         Line dest = out.getNext();
-
-         if ( ! convert(dest,src,axis) ) out.unget();
+         if (convert(i,axis)) out.add(reg5,reg6,in.getRGB(i));
       }
    }
 
    public void run(double[][] axis, boolean clear, PointTransform pt) {
       if (clear) out.clear();
       for (int i=0; i<in.size(); i++) {
-         Line src = in.get(i);
-         Line dest = out.getNext();
-
-         if (convert(dest,src,axis)) {
-            pt.transform(dest.p1);
-            pt.transform(dest.p2);
-         } else {
-            out.unget();
+         if (convert(i,axis)) {
+            pt.transform(reg5);
+            pt.transform(reg6);
+            out.add(reg5,reg6,in.getRGB(i));
          }
       }
    }
@@ -112,18 +116,16 @@ public class RenderRelative {
       // no need for clear here
       for (int i=0; i<obj.length; i+=2) {
          if ((mask & 1) == 1) {
-            Line dest = out.getNext();
+            Vec.copy(reg5,obj[i]);
+            Vec.copy(reg6,obj[i+1]);
 
-            Vec.copy(dest.p1,obj[i]);
-            Vec.copy(dest.p2,obj[i+1]);
-            dest.color = Color.white;
+            pt.transform(reg5);
+            pt.transform(reg6);
 
-            pt.transform(dest.p1);
-            pt.transform(dest.p2);
+            out.add(reg5,reg6,Color.white);
          }
          mask>>=1;
       }
    }
 
 }
-
@@ -113,6 +113,8 @@ public class Scramble {
 
    public static void generalScramble(Geom.Shape shape, double width) {
 
+      shape.unshareGeometry(); // we write into the center and axes
+
       generalPosition(shape.shapecenter,width);
       generalOrientation(shape.axis);
 
@@ -163,6 +165,8 @@ public class Scramble {
       Random random = new Random(); // convenient for alignedPosition;
       // necessary for alignedOrientation because of the Permute call.
 
+      shape.unshareGeometry(); // we write into the center and axes
+
       alignedPosition(shape.aligncenter,width,random);
       alignedOrientation(shape.axis,random);
 
@@ -0,0 +1,194 @@
+/*
+ * SeparateLog.java
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Instrumentation for the separator calculation in GeomModel.
+ * Callers just drop a record into a ring buffer; a background thread
+ * drains the buffer into the log file and keeps a histogram of the timings,
+ * which gets appended to the file as a summary whenever logging is turned off.<p>
+ *
+ * The buffer is a bounded lock-free queue with a sequence number per slot,
+ * so any number of threads can record.  If the writer falls behind,
+ * records are dropped and counted rather than blocking the caller.
+ */
+
+public class SeparateLog {
+
+// --- constants ---
+
+   private static final int CAPACITY = 4096; // must be a power of two
+   private static final int MASK = CAPACITY-1;
+   private static final int NBUCKET = 40; // powers of two from 1 ns up to about 18 minutes
+   private static final long IDLE_NANOS = 50000000; // 50 ms
+
+   private static final String ls = System.getProperty("line.separator");
+
+// --- fields ---
+
+   private static final File file = new File("../separateLog.txt");
+
+   private static volatile boolean enabled = Boolean.getBoolean("separateLog");
+   private static volatile boolean shuttingDown;
+   private static Thread writer; // started on first use
+
+   // ring buffer, one array per record field
+   private static final int[] shape1 = new int[CAPACITY];
+   private static final int[] shape2 = new int[CAPACITY];
+   private static final int[] vertex1 = new int[CAPACITY];
+   private static final int[] vertex2 = new int[CAPACITY];
+   private static final long[] nanos = new long[CAPACITY];
+   private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+   private static final AtomicLong head = new AtomicLong(); // next position to claim
+   private static long tail; // next position to drain, only touched by the writer
+   private static final AtomicLong dropped = new AtomicLong();
+
+   // histogram, only touched by the writer
+   private static long[] bucket = new long[NBUCKET];
+   private static long count;
+   private static long sum;
+   private static long min;
+   private static long max;
+
+   static {
+      for (int i=0; i<CAPACITY; i++) sequence.set(i,i);
+      if (enabled) start();
+   }
+
+// --- methods ---
+
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   public static synchronized void setEnabled(boolean b) {
+      enabled = b;
+      if (b) start();
+      if (writer != null) LockSupport.unpark(writer); // to write the summary, or to wake up
+   }
+
+   public static void toggle() {
+      setEnabled( ! enabled );
+   }
+
+   /**
+    * Add a record to the buffer.  This never blocks and never does I/O.
+    */
+   public static void record(int i1, int i2, int v1, int v2, long time) {
+      long pos = head.get();
+      while (true) {
+         int slot = (int) pos & MASK;
+         long diff = sequence.get(slot) - pos;
+         if (diff == 0) {
+            if (head.compareAndSet(pos,pos+1)) break;
+            pos = head.get();
+         } else if (diff < 0) { // full
+            dropped.incrementAndGet();
+            return;
+         } else {
+            pos = head.get();
+         }
+      }
+      int slot = (int) pos & MASK;
+      shape1[slot] = i1;
+      shape2[slot] = i2;
+      vertex1[slot] = v1;
+      vertex2[slot] = v2;
+      nanos[slot] = time;
+      sequence.set(slot,pos+1); // publish
+   }
+
+// --- writer ---
+
+   private static void start() {
+      if (writer != null) return;
+      writer = new Thread(new Runnable() { public void run() { runWriter(); } },"SeparateLog");
+      writer.setDaemon(true);
+      writer.start();
+      Runtime.getRuntime().addShutdownHook(new Thread() { public void run() { shutdown(); } });
+   }
+
+   private static void shutdown() {
+      enabled = false; // before shuttingDown, see runWriter
+      shuttingDown = true;
+      LockSupport.unpark(writer);
+      try {
+         writer.join(1000);
+      } catch (InterruptedException e) {
+         // just give up
+      }
+   }
+
+   /**
+    * Drain the buffer until it's empty, then wait.  While logging is on,
+    * wait a little and look again; while it's off, wait to be woken up.
+    * At shutdown, do one last pass, write the summary, and stop.
+    */
+   private static void runWriter() {
+      while (true) {
+         boolean last = shuttingDown; // if set, enabled is already false
+         int n = 0;
+         Writer w = null;
+         try {
+            while (true) {
+               int slot = (int) tail & MASK;
+               if (sequence.get(slot) != tail+1) break; // empty, or not published yet
+               if (w == null) w = new BufferedWriter(new FileWriter(file,/* append = */ true));
+               write(w,slot);
+               sequence.set(slot,tail+CAPACITY); // release the slot
+               tail++;
+               n++;
+            }
+            if (n == 0 && ! enabled && count != 0) {
+               if (w == null) w = new BufferedWriter(new FileWriter(file,/* append = */ true));
+               writeSummary(w);
+            }
+         } catch (IOException e) {
+            System.out.println(e);
+         } finally {
+            if (w != null) try { w.close(); } catch (IOException e) {}
+         }
+         if (n != 0) continue;
+
+         if (last) return;
+         if (enabled) LockSupport.parkNanos(IDLE_NANOS); else LockSupport.park();
+      }
+   }
+
+   private static void write(Writer w, int slot) throws IOException {
+      long time = nanos[slot];
+      w.write("shape "+shape1[slot]+" ("+vertex1[slot]+" vertices)"+ls);
+      w.write("shape "+shape2[slot]+" ("+vertex2[slot]+" vertices)"+ls);
+      w.write(time+ls+ls);
+
+      if (count == 0 || time < min) min = time;
+      if (count == 0 || time > max) max = time;
+      count++;
+      sum += time;
+      int b = 63 - Long.numberOfLeadingZeros(Math.max(time,1));
+      bucket[Math.min(b,NBUCKET-1)]++;
+   }
+
+   private static void writeSummary(Writer w) throws IOException {
+      w.write("summary: "+count+" records, "+dropped.getAndSet(0)+" dropped"+ls);
+      w.write("min "+min+" ns, mean "+(sum/count)+" ns, max "+max+" ns"+ls);
+      for (int b=0; b<NBUCKET; b++) {
+         if (bucket[b] == 0) continue;
+         w.write("< "+(1L << (b+1))+" ns: "+bucket[b]+ls);
+         bucket[b] = 0;
+      }
+      w.write(ls);
+      count = 0;
+      sum = 0;
+   }
+
+}
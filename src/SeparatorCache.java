@@ -0,0 +1,137 @@
+/*
+ * SeparatorCache.java
+ */
+
+/**
+ * A cache of separators for pairs of shapes in a shape table,
+ * used in place of a full matrix so that memory scales with
+ * the number of pairs that actually get tested.<p>
+ *
+ * An entry stays valid until one of its two shapes moves
+ * (see Geom.Shape.version) or its slot gets a different shape,
+ * so there's no need to distinguish mobile shapes from fixed ones.
+ */
+
+public class SeparatorCache {
+
+// --- entry ---
+
+   private static class Entry {
+      public Geom.Separator sep;
+      public Geom.Shape s1;
+      public Geom.Shape s2;
+      public int v1;
+      public int v2;
+   }
+
+// --- fields ---
+
+   // open addressing with linear probing.  entries are never removed,
+   // only cleared, so there's no need for tombstones.
+   private long[] key;
+   private Entry[] entry;
+   private int size;
+
+// --- construction ---
+
+   public SeparatorCache() {
+      allocate(256);
+   }
+
+   private void allocate(int capacity) {
+      key = new long[capacity];
+      entry = new Entry[capacity];
+      size = 0;
+   }
+
+// --- helpers ---
+
+   private static long toKey(int i1, int i2) {
+      return (((long) i1) << 32) | (i2 & 0xFFFFFFFFL);
+   }
+
+   private int find(long k) {
+      int mask = key.length-1;
+      int h = (int) ((k * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+      while (entry[h] != null && key[h] != k) h = (h+1) & mask;
+      return h;
+   }
+
+   private void grow() {
+      long[] keyOld = key;
+      Entry[] entryOld = entry;
+      allocate(2*keyOld.length);
+      for (int i=0; i<keyOld.length; i++) {
+         if (entryOld[i] == null) continue;
+         int h = find(keyOld[i]);
+         key[h] = keyOld[i];
+         entry[h] = entryOld[i];
+         size++;
+      }
+   }
+
+// --- methods ---
+
+   /**
+    * @return The cached separator, or null if there isn't a valid one.
+    */
+   public Geom.Separator get(int i1, int i2, Geom.Shape s1, Geom.Shape s2) {
+      Entry e = entry[find(toKey(i1,i2))];
+      if (e == null || e.sep == null) return null;
+      if (e.s1 != s1 || e.s2 != s2 || e.v1 != s1.version || e.v2 != s2.version) return null;
+      return e.sep;
+   }
+
+   /**
+    * @return The separator in the entry for the pair whether it's valid or not,
+    *         if it's a normal separator, so that it can be recycled.
+    *         Only call this after get returns null, and only if every
+    *         normal separator you put in owns its normal.
+    */
+   public Geom.NormalSeparator getSpare(int i1, int i2) {
+      Entry e = entry[find(toKey(i1,i2))];
+      if (e == null || ! (e.sep instanceof Geom.NormalSeparator)) return null;
+      return (Geom.NormalSeparator) e.sep;
+   }
+
+   public void put(int i1, int i2, Geom.Shape s1, Geom.Shape s2, Geom.Separator sep) {
+      long k = toKey(i1,i2);
+      int h = find(k);
+      Entry e = entry[h];
+      if (e == null) {
+         if (2*(size+1) > key.length) { grow(); h = find(k); }
+         e = new Entry();
+         key[h] = k;
+         entry[h] = e;
+         size++;
+      }
+      e.sep = sep;
+      e.s1 = s1;
+      e.s2 = s2;
+      e.v1 = s1.version;
+      e.v2 = s2.version;
+   }
+
+   public void clear() {
+      for (int h=0; h<entry.length; h++) {
+         if (entry[h] != null) clear(entry[h]);
+      }
+   }
+
+   /**
+    * Clear all entries involving the shape at index i.
+    */
+   public void clear(int i) {
+      for (int h=0; h<entry.length; h++) {
+         if (entry[h] == null) continue;
+         if ((int) (key[h] >>> 32) == i || (int) key[h] == i) clear(entry[h]);
+      }
+   }
+
+   private static void clear(Entry e) {
+      e.sep = null;
+      e.s1 = null; // release references
+      e.s2 = null;
+   }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * ShapeGrid.java
+ */
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the bounding spheres of a shape table, used to find
+ * the shapes that might block a motion without testing every shape.
+ * Like SphereTree, it refers to shapes by their index in the table,
+ * and the table can contain null slots.<p>
+ *
+ * Each shape is entered in every cell that its bounding box touches,
+ * except that shapes that would cover too many cells go in a separate list
+ * that is always checked.  Cells are kept in a hash table, so the grid
+ * doesn't need to know the extent of the world.<p>
+ *
+ * The grid notices on its own when shapes move (see Geom.Shape.version
+ * and Geom.Shape.moveCount), but changes to the table slots have to be
+ * reported through update.  A whole new table just causes a rebuild.
+ */
+
+public class ShapeGrid {
+
+// --- constants ---
+
+   private static final int BIG_CELLS = 64; // shapes covering more cells than this go in the big list
+   private static final int COORD_BITS = 16;
+   private static final int COORD_MIN = -(1 << (COORD_BITS-1));
+   private static final int COORD_MAX =  (1 << (COORD_BITS-1)) - 1;
+   private static final double EPSILON = 0.000001; // slack in query box, see outsideRadius
+
+// --- fields ---
+
+   private int dim;
+   private Geom.Shape[] table; // the table the grid was built from, not a copy
+   private double cell; // cell size
+   private int moveCount;
+
+   // per shape, indexed by slot
+   private Geom.Shape[] entered; // null if the slot isn't in the grid
+   private int[] version;
+   private int[] lo; // cell range, dim per slot
+   private int[] hi;
+   private boolean[] big;
+   private int[] mark; // last query that visited the slot
+
+   // hash table of cells, open addressing with linear probing.
+   // empty cells are kept, so there's no need for tombstones.
+   private long[] key;
+   private int[][] member;
+   private int[] nmember;
+   private int ncell;
+
+   private int[] bigList;
+   private int nbig;
+
+   private int[] result;
+   private int query;
+
+   private int[] reg1;
+   private int[] reg2;
+   private int[] reg3;
+
+// --- construction ---
+
+   public ShapeGrid(int dim) {
+      this.dim = dim;
+      bigList = new int[16];
+      result = new int[16];
+      reg1 = new int[dim];
+      reg2 = new int[dim];
+      reg3 = new int[dim];
+   }
+
+// --- maintenance ---
+
+   /**
+    * Bring the grid up to date with the shape table.
+    */
+   public void sync(Geom.Shape[] shapes) {
+      if (shapes != table) { build(shapes); return; }
+      int count = Geom.Shape.moveCount.get();
+      if (moveCount == count) return; // nothing moved anywhere
+      moveCount = count;
+
+      for (int i=0; i<shapes.length; i++) {
+         Geom.Shape shape = shapes[i];
+         if (shape != entered[i] || (shape != null && shape.version != version[i])) update(i);
+      }
+   }
+
+   /**
+    * Report that slot i of the table has changed.
+    */
+   public void update(Geom.Shape[] shapes, int i) {
+      if (shapes != table) return; // will rebuild on next sync
+      update(i);
+   }
+
+   private void update(int i) {
+      Geom.Shape shape = table[i];
+      if (shape != null && shape.systemMove) shape = null; // canMove ignores these anyway
+
+      if (shape == entered[i] && shape != null && ! big[i]) {
+         // common case, shape moved, see if it changed cells
+         version[i] = shape.version;
+         calcRange(reg1,reg2,shape);
+         boolean same = true;
+         for (int a=0; a<dim; a++) {
+            if (reg1[a] != lo[i*dim+a] || reg2[a] != hi[i*dim+a]) { same = false; break; }
+         }
+         if (same) return;
+      }
+
+      remove(i);
+      if (shape != null) insert(i,shape);
+   }
+
+   private void build(Geom.Shape[] shapes) {
+      table = shapes;
+      moveCount = Geom.Shape.moveCount.get();
+
+      int n = shapes.length;
+      entered = new Geom.Shape[n];
+      version = new int[n];
+      lo = new int[n*dim];
+      hi = new int[n*dim];
+      big = new boolean[n];
+      mark = new int[n];
+      nbig = 0;
+      query = 0;
+
+      // pick the cell size so that a typical shape covers a few cells
+
+      double[] r = new double[n];
+      int count = 0;
+      for (int i=0; i<n; i++) {
+         if (shapes[i] != null && ! shapes[i].systemMove) r[count++] = shapes[i].radius;
+      }
+      if (count == 0) {
+         cell = 1;
+      } else {
+         Arrays.sort(r,0,count);
+         cell = 2*r[count/2];
+         if ( ! (cell > 0) ) cell = 1;
+      }
+
+      allocate(64);
+      for (int i=0; i<n; i++) update(i);
+   }
+
+   private void allocate(int capacity) {
+      key = new long[capacity];
+      member = new int[capacity][];
+      nmember = new int[capacity];
+      ncell = 0;
+   }
+
+// --- cells ---
+
+   private int toCoord(double x) {
+      double c = Math.floor(x/cell);
+      if (c < COORD_MIN) return COORD_MIN;
+      if (c > COORD_MAX) return COORD_MAX;
+      return (int) c;
+      // clamping lumps far-off cells together, which is harmless
+   }
+
+   private void calcRange(int[] rlo, int[] rhi, Geom.Shape shape) {
+      for (int a=0; a<dim; a++) {
+         rlo[a] = toCoord(shape.shapecenter[a] - shape.radius);
+         rhi[a] = toCoord(shape.shapecenter[a] + shape.radius);
+      }
+   }
+
+   private static long countCells(int[] rlo, int[] rhi) {
+      long n = 1;
+      for (int a=0; a<rlo.length; a++) n *= (rhi[a]-rlo[a]+1);
+      return n;
+   }
+
+   private long toKey(int[] c) {
+      long k = 0;
+      for (int a=0; a<dim; a++) k = (k << COORD_BITS) | (c[a] - COORD_MIN);
+      return k;
+   }
+
+   private int find(long k) {
+      int mask = key.length-1;
+      int h = (int) ((k * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+      while (member[h] != null && key[h] != k) h = (h+1) & mask;
+      return h;
+   }
+
+   private void grow() {
+      long[] keyOld = key;
+      int[][] memberOld = member;
+      int[] nmemberOld = nmember;
+      allocate(2*keyOld.length);
+      for (int i=0; i<keyOld.length; i++) {
+         if (memberOld[i] == null) continue;
+         int h = find(keyOld[i]);
+         key[h] = keyOld[i];
+         member[h] = memberOld[i];
+         nmember[h] = nmemberOld[i];
+         ncell++;
+      }
+   }
+
+   /**
+    * Step c through the cells from rlo to rhi, like an odometer.
+    * @return False when the range is finished.
+    */
+   private boolean next(int[] c, int[] rlo, int[] rhi) {
+      for (int a=0; a<dim; a++) {
+         if (c[a] < rhi[a]) { c[a]++; return true; }
+         c[a] = rlo[a];
+      }
+      return false;
+   }
+
+   private void insert(int i, Geom.Shape shape) {
+      entered[i] = shape;
+      version[i] = shape.version;
+      calcRange(reg1,reg2,shape);
+
+      if (countCells(reg1,reg2) > BIG_CELLS) {
+         big[i] = true;
+         if (nbig == bigList.length) bigList = grow(bigList);
+         bigList[nbig++] = i;
+         return;
+      }
+
+      big[i] = false;
+      System.arraycopy(reg1,0,lo,i*dim,dim);
+      System.arraycopy(reg2,0,hi,i*dim,dim);
+
+      System.arraycopy(reg1,0,reg3,0,dim);
+      do {
+         long k = toKey(reg3);
+         int h = find(k);
+         if (member[h] == null) {
+            if (2*(ncell+1) > key.length) { grow(); h = find(k); }
+            key[h] = k;
+            member[h] = new int[4];
+            ncell++;
+         }
+         if (nmember[h] == member[h].length) member[h] = grow(member[h]);
+         member[h][nmember[h]++] = i;
+      } while (next(reg3,reg1,reg2));
+   }
+
+   private void remove(int i) {
+      if (entered[i] == null) return;
+      entered[i] = null;
+
+      if (big[i]) {
+         for (int j=0; j<nbig; j++) {
+            if (bigList[j] == i) { bigList[j] = bigList[--nbig]; break; }
+         }
+         return;
+      }
+
+      System.arraycopy(lo,i*dim,reg1,0,dim);
+      System.arraycopy(hi,i*dim,reg2,0,dim);
+
+      System.arraycopy(reg1,0,reg3,0,dim);
+      do {
+         int h = find(toKey(reg3));
+         int[] m = member[h];
+         for (int j=0; j<nmember[h]; j++) {
+            if (m[j] == i) { m[j] = m[--nmember[h]]; break; }
+         }
+      } while (next(reg3,reg1,reg2));
+   }
+
+   private static int[] grow(int[] a) {
+      int[] temp = new int[2*a.length];
+      System.arraycopy(a,0,temp,0,a.length);
+      return temp;
+   }
+
+// --- query ---
+
+   /**
+    * Find the shapes that might block motion from p1 to p2.
+    * Shapes that aren't found are ones that Clip.outsideRadius would reject.
+    * Call sync first.
+    * @return The number of shapes, see getResult.  The indices are in increasing order.
+    */
+   public int findCandidates(double[] p1, double[] p2) {
+      int n = 0;
+      if (++query == 0) { Arrays.fill(mark,0); query = 1; }
+
+      // outsideRadius passes shapes whose sphere comes within s/2 of p2,
+      // so a box of that size around p2 covers all the cells we need.
+      double s = Vec.dist(p1,p2)/2 + EPSILON;
+      for (int a=0; a<dim; a++) {
+         reg1[a] = toCoord(p2[a] - s);
+         reg2[a] = toCoord(p2[a] + s);
+      }
+
+      if (countCells(reg1,reg2) > table.length + ncell) { // long motion, cheaper to take everything
+         for (int i=0; i<table.length; i++) {
+            if (entered[i] != null) n = add(n,i);
+         }
+         return n; // already in order
+      }
+
+      System.arraycopy(reg1,0,reg3,0,dim);
+      do {
+         int h = find(toKey(reg3));
+         if (member[h] == null) continue;
+         int[] m = member[h];
+         for (int j=0; j<nmember[h]; j++) {
+            int i = m[j];
+            if (mark[i] != query) { mark[i] = query; n = add(n,i); }
+         }
+      } while (next(reg3,reg1,reg2));
+
+      for (int j=0; j<nbig; j++) n = add(n,bigList[j]);
+
+      Arrays.sort(result,0,n);
+      return n;
+   }
+
+   private int add(int n, int i) {
+      if (n == result.length) result = grow(result);
+      result[n] = i;
+      return n+1;
+   }
+
+   /**
+    * @return The result array from findCandidates.  Not a copy!
+    */
+   public int[] getResult() {
+      return result;
+   }
+
+}
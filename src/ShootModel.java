@@ -120,12 +120,12 @@ public class ShootModel extends ActionModel {
 
    private void addShape(Geom.Shape shape) {
       if (countSlots() == 0) reallocate(shapes.length+16);
-      shapes[findSlot(0)] = shape;
+      setShape(findSlot(0),shape);
    }
 
    private void deleteBullet(int ib) {
       int i = indexOf(bullets[ib].shape);
-      shapes[i] = null;
+      setShape(i,null);
       clipUnits[i].setBoundaries(null);
       clearSeparators(i);
       bullets[ib] = null;
@@ -187,7 +187,7 @@ public class ShootModel extends ActionModel {
 
    private void killEnemy(int ie) {
       int i = indexOf(enemies[ie].getShape());
-      shapes[i] = null;
+      setShape(i,null);
       clipUnits[i].setBoundaries(null);
       clearSeparators(i);
       enemies[ie] = null;
@@ -0,0 +1,377 @@
+/*
+ * SphereTree.java
+ */
+
+/**
+ * A bounding volume hierarchy over the bounding spheres of a shape table.
+ * The table is the one kept by GeomModel, so it can contain null slots,
+ * and the tree refers to shapes by their index in the table.<p>
+ *
+ * The tree is kept in sync lazily: if the table slots change it's rebuilt,
+ * and if shapes merely move (see Geom.Shape.version) the node spheres are refit.<p>
+ *
+ * Besides the view pairs used for drawing, the tree answers ray queries,
+ * which is how GeomModel finds the shape you're pointing at.
+ */
+
+public class SphereTree {
+
+// --- fields ---
+
+   private int dim;
+   private Geom.Shape[] built; // copy of the table the tree was built from
+
+   // nodes are stored in pre-order, so children always come after parents
+   private int count;
+   private int[] left;  // -1 for leaves
+   private int[] right;
+   private int[] leaf;  // shape index, or -1 for internal nodes
+   private int[] version;
+   private double[][] center;
+   private double[] radius;
+
+   // view cones, valid after setViewpoint
+   private double[][] dir;
+   private double[] cos;
+   private double[] sin;
+   private boolean[] inside;
+
+   private int[] pair; // i1,i2 with i1 < i2
+   private int npair;
+
+   private int[] stack; // for ray queries
+   private double[] entry;
+
+   private int[] reg; // scratch for build
+   private double[] reg1;
+   private double[] reg2;
+
+// --- construction ---
+
+   public SphereTree(int dim) {
+      this.dim = dim;
+      pair = new int[64];
+      reg1 = new double[dim];
+      reg2 = new double[dim];
+      stack = new int[16];
+      entry = new double[16];
+   }
+
+// --- maintenance ---
+
+   /**
+    * Bring the tree up to date with the shape table.
+    */
+   public void sync(Geom.Shape[] shapes) {
+      if (isStale(shapes)) build(shapes); else refit();
+   }
+
+   private boolean isStale(Geom.Shape[] shapes) {
+      if (built == null || built.length != shapes.length) return true;
+      for (int i=0; i<shapes.length; i++) {
+         if (shapes[i] != built[i]) return true;
+      }
+      return false;
+   }
+
+   private void build(Geom.Shape[] shapes) {
+      built = (Geom.Shape[]) shapes.clone();
+
+      int n = 0;
+      for (int i=0; i<shapes.length; i++) {
+         if (shapes[i] != null) n++;
+      }
+
+      int nodes = (n == 0) ? 0 : 2*n-1;
+      left    = new int[nodes];
+      right   = new int[nodes];
+      leaf    = new int[nodes];
+      version = new int[nodes];
+      center  = new double[nodes][dim];
+      radius  = new double[nodes];
+      dir     = new double[nodes][dim];
+      cos     = new double[nodes];
+      sin     = new double[nodes];
+      inside  = new boolean[nodes];
+
+      reg = new int[n];
+      n = 0;
+      for (int i=0; i<shapes.length; i++) {
+         if (shapes[i] != null) reg[n++] = i;
+      }
+
+      count = 0;
+      if (n != 0) buildNode(0,n);
+   }
+
+   private int buildNode(int lo, int hi) {
+      int node = count++;
+
+      if (hi-lo == 1) {
+         Geom.Shape shape = built[reg[lo]];
+         left [node] = -1;
+         right[node] = -1;
+         leaf [node] = reg[lo];
+         version[node] = shape.version;
+         Vec.copy(center[node],shape.shapecenter);
+         radius[node] = shape.radius;
+         return node;
+      }
+
+      // split at the median along the axis where the centers are most spread out
+
+      int axis = 0;
+      double best = -1;
+      for (int a=0; a<dim; a++) {
+         double min = built[reg[lo]].shapecenter[a];
+         double max = min;
+         for (int i=lo+1; i<hi; i++) {
+            double d = built[reg[i]].shapecenter[a];
+            if (d < min) min = d;
+            if (d > max) max = d;
+         }
+         if (max-min > best) { best = max-min; axis = a; }
+      }
+
+      int mid = (lo+hi)/2;
+      select(lo,hi,mid,axis);
+
+      leaf[node] = -1;
+      left [node] = buildNode(lo,mid);
+      right[node] = buildNode(mid,hi);
+      merge(node);
+      return node;
+   }
+
+   /**
+    * Partially sort reg[lo,hi) so that the element at k is in its sorted position.
+    */
+   private void select(int lo, int hi, int k, int axis) {
+      hi--;
+      while (lo < hi) {
+         double pivot = built[reg[(lo+hi)/2]].shapecenter[axis];
+         int i = lo;
+         int j = hi;
+         while (i <= j) {
+            while (built[reg[i]].shapecenter[axis] < pivot) i++;
+            while (built[reg[j]].shapecenter[axis] > pivot) j--;
+            if (i <= j) {
+               int temp = reg[i]; reg[i] = reg[j]; reg[j] = temp;
+               i++;
+               j--;
+            }
+         }
+         if (k <= j) hi = j;
+         else if (k >= i) lo = i;
+         else break;
+      }
+   }
+
+   private void refit() {
+      boolean dirty = false;
+      for (int node=0; node<count; node++) {
+         if (leaf[node] == -1) continue;
+         Geom.Shape shape = built[leaf[node]];
+         if (shape.version != version[node]) {
+            version[node] = shape.version;
+            Vec.copy(center[node],shape.shapecenter);
+            radius[node] = shape.radius;
+            dirty = true;
+         }
+      }
+      if ( ! dirty ) return;
+
+      for (int node=count-1; node>=0; node--) {
+         if (leaf[node] == -1) merge(node);
+      }
+   }
+
+   /**
+    * Set an internal node's sphere to enclose the spheres of its children.
+    */
+   private void merge(int node) {
+      int a = left [node];
+      int b = right[node];
+
+      Vec.sub(reg1,center[b],center[a]);
+      double d = Vec.norm(reg1);
+
+      if (d + radius[b] <= radius[a]) {
+         Vec.copy(center[node],center[a]);
+         radius[node] = radius[a];
+      } else if (d + radius[a] <= radius[b]) {
+         Vec.copy(center[node],center[b]);
+         radius[node] = radius[b];
+      } else {
+         double r = (d + radius[a] + radius[b]) / 2;
+         Vec.addScaled(center[node],center[a],reg1,(r-radius[a])/d);
+         radius[node] = r;
+      }
+   }
+
+// --- view pairs ---
+
+   /**
+    * Find all pairs of shapes that might overlap as seen from the origin,
+    * i.e., pairs where the cones from the origin to the bounding spheres intersect.
+    * Pairs that aren't found can't possibly occlude one another.
+    * Call sync first.
+    * @return The number of pairs, see getPairs.
+    */
+   public int findViewPairs(double[] origin) {
+      npair = 0;
+      if (count == 0) return 0;
+
+      for (int node=0; node<count; node++) setCone(node,origin);
+      selfPairs(0);
+
+      return npair;
+   }
+
+   /**
+    * @return The pair array, with pairs stored consecutively.  Not a copy!
+    */
+   public int[] getPairs() {
+      return pair;
+   }
+
+   private void setCone(int node, double[] origin) {
+      Vec.sub(dir[node],center[node],origin);
+      double d = Vec.norm(dir[node]);
+      double r = radius[node];
+      if (d <= r) { inside[node] = true; return; } // cone is everything
+      inside[node] = false;
+      Vec.scale(dir[node],dir[node],1/d);
+      sin[node] = r/d;
+      cos[node] = Math.sqrt(1 - sin[node]*sin[node]);
+   }
+
+   private boolean overlap(int a, int b) {
+      if (inside[a] || inside[b]) return true;
+
+      // the angle between the axes has to be less than the sum of the half-angles.
+      // both half-angles are at most 90 degrees, so we can compare cosines.
+      final double epsilon = 0.000001;
+      return Vec.dot(dir[a],dir[b]) > cos[a]*cos[b] - sin[a]*sin[b] - epsilon;
+   }
+
+   private void selfPairs(int node) {
+      if (leaf[node] != -1) return;
+      selfPairs(left [node]);
+      selfPairs(right[node]);
+      crossPairs(left[node],right[node]);
+   }
+
+   private void crossPairs(int a, int b) {
+      if ( ! overlap(a,b) ) return;
+
+      boolean la = (leaf[a] != -1);
+      boolean lb = (leaf[b] != -1);
+
+      if (la && lb) {
+         addPair(leaf[a],leaf[b]);
+      } else if (la || ( ! lb && radius[b] > radius[a] )) { // descend into the bigger one
+         crossPairs(a,left [b]);
+         crossPairs(a,right[b]);
+      } else {
+         crossPairs(left [a],b);
+         crossPairs(right[a],b);
+      }
+   }
+
+   private void addPair(int i1, int i2) {
+      if (2*npair+2 > pair.length) {
+         int[] temp = new int[2*pair.length];
+         System.arraycopy(pair,0,temp,0,2*npair);
+         pair = temp;
+      }
+      if (i1 < i2) {
+         pair[2*npair  ] = i1;
+         pair[2*npair+1] = i2;
+      } else {
+         pair[2*npair  ] = i2;
+         pair[2*npair+1] = i1;
+      }
+      npair++;
+   }
+
+// --- ray queries ---
+
+   /**
+    * A callback for ray queries.  The tree calls test for shapes whose
+    * bounding spheres might be hit, nearest first as far as it can tell,
+    * and test returns the distance along the ray beyond which nothing
+    * matters any more.  Anything that's actually hit is up to the caller.
+    */
+   public interface RayTest {
+      double test(int i);
+   }
+
+   /**
+    * Run a ray query.  The axis must be normalized.  Call sync first.
+    * @param limit The initial distance beyond which nothing matters.
+    */
+   public void findRay(double[] origin, double[] axis, double limit, RayTest rt) {
+      if (count == 0) return;
+
+      int n = 0;
+      if ( ! pushRay(0,origin,axis,n) ) return;
+      n++;
+
+      while (n > 0) {
+         n--;
+         int node = stack[n];
+         if (entry[n] > limit + slack(limit)) continue; // something nearer was found since
+
+         if (leaf[node] != -1) {
+            limit = rt.test(leaf[node]);
+            continue;
+         }
+
+         // push the far child first so that the near one comes off first
+         int a = left [node];
+         int b = right[node];
+         boolean pushA = pushRay(a,origin,axis,n);
+         if (pushA) n++;
+         if (pushRay(b,origin,axis,n)) {
+            if (pushA && entry[n-1] < entry[n]) { // a is nearer, swap
+               stack[n-1] = b;
+               stack[n  ] = a;
+               double temp = entry[n-1]; entry[n-1] = entry[n]; entry[n] = temp;
+            }
+            n++;
+         }
+      }
+   }
+
+   private static double slack(double d) {
+      return 0.000001 * (1 + Math.abs(d));
+   }
+
+   /**
+    * Put a node on the stack at position n if the line hits its sphere.
+    * The test is a bit generous so that rounding can't make it miss
+    * anything that the caller would have counted as a hit.
+    */
+   private boolean pushRay(int node, double[] origin, double[] axis, int n) {
+      Vec.sub(reg2,center[node],origin);
+      double d = Vec.dot(reg2,axis);
+      Vec.addScaled(reg2,reg2,axis,-d);
+      double r = radius[node] + slack(radius[node]);
+      double h2 = r*r - Vec.dot(reg2,reg2);
+      if (h2 < 0) return false;
+
+      if (n == stack.length) {
+         int[] tempStack = new int[2*n];
+         System.arraycopy(stack,0,tempStack,0,n);
+         stack = tempStack;
+         double[] tempEntry = new double[2*n];
+         System.arraycopy(entry,0,tempEntry,0,n);
+         entry = tempEntry;
+      }
+      stack[n] = node;
+      entry[n] = d - Math.sqrt(h2);
+      return true;
+   }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Tokenizer.java
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A tokenizer for the scene language.  It reads the whole file into a buffer
+ * up front and then works straight off the buffer, which is much faster
+ * than StreamTokenizer for the big numeric files.<p>
+ *
+ * The rules are exactly the ones that StreamTokenizer follows with the
+ * settings in Language, including the way it does arithmetic on numbers,
+ * so a file produces the same tokens and the same values either way.
+ * That means, for example, that there are no exponents, that a minus sign
+ * not followed by a digit is an ordinary character, and that a lone slash
+ * starts a comment.
+ */
+
+public class Tokenizer {
+
+// --- constants ---
+
+   public static final int TT_EOF    = -1;
+   public static final int TT_NUMBER = -2;
+   public static final int TT_WORD   = -3;
+
+   private static final int TT_NOTHING = -4; // before the first token
+
+   private static final byte CT_WHITESPACE = 1;
+   private static final byte CT_DIGIT      = 2;
+   private static final byte CT_ALPHA      = 4;
+   private static final byte CT_QUOTE      = 8;
+
+   private static final byte[] ctype = new byte[256];
+   static {
+      for (int c=0; c<=' '; c++) ctype[c] = CT_WHITESPACE;
+      for (int c='0'; c<='9'; c++) ctype[c] = CT_DIGIT;
+      ctype['.'] = CT_DIGIT;
+      ctype['-'] = CT_DIGIT | CT_ALPHA; // can continue a word but not start one
+      for (int c='a'; c<='z'; c++) ctype[c] = CT_ALPHA;
+      for (int c='A'; c<='Z'; c++) ctype[c] = CT_ALPHA;
+      for (int c=128+32; c<256; c++) ctype[c] = CT_ALPHA;
+      ctype['#'] = CT_ALPHA;
+      ctype['%'] = CT_ALPHA;
+      ctype['+'] = CT_ALPHA;
+      ctype['_'] = CT_ALPHA;
+      ctype['"' ] = CT_QUOTE;
+      ctype['\''] = CT_QUOTE;
+   }
+
+// --- fields ---
+
+   public int ttype;
+   public double nval;
+   public String sval;
+
+   private char[] buf;
+   private int len;
+   private int pos;
+   private int line;
+   private boolean pushedBack;
+
+   private char[] quote; // scratch for quoted strings
+   private double[] number; // scratch for readNumbers
+
+// --- construction ---
+
+   public Tokenizer(Reader reader) throws IOException {
+      buf = new char[65536];
+      len = 0;
+      while (true) {
+         if (len == buf.length) {
+            char[] temp = new char[2*buf.length];
+            System.arraycopy(buf,0,temp,0,len);
+            buf = temp;
+         }
+         int n = reader.read(buf,len,buf.length-len);
+         if (n == -1) break;
+         len += n;
+      }
+      pos = 0;
+      line = 1;
+      ttype = TT_NOTHING;
+      quote = new char[64];
+      number = new double[64];
+   }
+
+// --- methods ---
+
+   public void pushBack() {
+      if (ttype != TT_NOTHING) pushedBack = true;
+   }
+
+   public int lineno() {
+      return line;
+   }
+
+   public int getPosition() {
+      return pos;
+   }
+
+   private int read() {
+      return (pos < len) ? buf[pos++] : -1;
+   }
+
+   private static int getType(int c) {
+      return (c < 256) ? ctype[c] : CT_ALPHA;
+   }
+
+   /**
+    * Count a line if c is a line terminator, treating CR LF as one.
+    */
+   private void countLine(int c) {
+      if (c == '\n') line++;
+      else if (c == '\r') { line++; if (pos < len && buf[pos] == '\n') pos++; }
+   }
+
+   public int nextToken() {
+      if (pushedBack) {
+         pushedBack = false;
+         return ttype;
+      }
+      sval = null;
+
+      while (true) {
+
+         int c = read();
+         if (c == -1) return ttype = TT_EOF;
+
+         int ct = getType(c);
+         if ((ct & CT_WHITESPACE) != 0) {
+            countLine(c);
+            continue;
+         }
+
+         if ((ct & CT_DIGIT) != 0) return readNumber(c);
+
+         if ((ct & CT_ALPHA) != 0) {
+            int start = pos-1;
+            while (pos < len && (getType(buf[pos]) & (CT_ALPHA | CT_DIGIT)) != 0) pos++;
+            sval = new String(buf,start,pos-start);
+            return ttype = TT_WORD;
+         }
+
+         if ((ct & CT_QUOTE) != 0) return readQuote(c);
+
+         if (c == '/') {
+            c = read();
+            if (c == '*') {
+               // StreamTokenizer doesn't look at the character after a line
+               // terminator here, so neither do we, or the line numbers would differ
+               int prev = 0;
+               while (true) {
+                  c = read();
+                  if (c == '/' && prev == '*') break;
+                  if (c == '\r') {
+                     line++;
+                     c = read();
+                     if (c == '\n') c = read();
+                  } else if (c == '\n') {
+                     line++;
+                     c = read();
+                  }
+                  if (c == -1) return ttype = TT_EOF;
+                  prev = c;
+               }
+            } else {
+               // slash-slash comment, or a lone slash, which is a comment character.
+               // either way the character after the first slash is gone.
+               while (pos < len && buf[pos] != '\n' && buf[pos] != '\r') pos++;
+            }
+            continue;
+         }
+
+         return ttype = c; // ordinary character
+      }
+   }
+
+   private int readNumber(int c) {
+      boolean neg = false;
+      if (c == '-') {
+         c = read();
+         if (c != '.' && (c < '0' || c > '9')) {
+            if (c != -1) pos--;
+            return ttype = '-';
+         }
+         neg = true;
+      }
+
+      // same arithmetic as StreamTokenizer, so the values come out identical
+      double v = 0;
+      int decexp = 0;
+      int seendot = 0;
+      while (true) {
+         if (c == '.' && seendot == 0) {
+            seendot = 1;
+         } else if ('0' <= c && c <= '9') {
+            v = v * 10 + (c - '0');
+            decexp += seendot;
+         } else {
+            break;
+         }
+         c = read();
+      }
+      if (c != -1) pos--;
+
+      if (decexp != 0) {
+         double denom = 10;
+         decexp--;
+         while (decexp > 0) {
+            denom *= 10;
+            decexp--;
+         }
+         v = v / denom;
+      }
+      nval = neg ? -v : v;
+      return ttype = TT_NUMBER;
+   }
+
+   private int readQuote(int q) {
+      int n = 0;
+      int d = read();
+      while (d != -1 && d != q && d != '\n' && d != '\r') {
+         int c;
+         if (d == '\\') {
+            c = read();
+            int first = c; // to allow \377 but not \477
+            if (c >= '0' && c <= '7') {
+               c = c - '0';
+               int c2 = read();
+               if ('0' <= c2 && c2 <= '7') {
+                  c = (c << 3) + (c2 - '0');
+                  c2 = read();
+                  if ('0' <= c2 && c2 <= '7' && first <= '3') {
+                     c = (c << 3) + (c2 - '0');
+                     d = read();
+                  } else {
+                     d = c2;
+                  }
+               } else {
+                  d = c2;
+               }
+            } else {
+               switch (c) {
+               case 'a': c = 0x7;  break;
+               case 'b': c = '\b'; break;
+               case 'f': c = 0xC;  break;
+               case 'n': c = '\n'; break;
+               case 'r': c = '\r'; break;
+               case 't': c = '\t'; break;
+               case 'v': c = 0xB;  break;
+               }
+               d = read();
+            }
+         } else {
+            c = d;
+            d = read();
+         }
+         if (n == quote.length) {
+            char[] temp = new char[2*n];
+            System.arraycopy(quote,0,temp,0,n);
+            quote = temp;
+         }
+         quote[n++] = (char) c;
+      }
+      if (d != q && d != -1) pos--; // leave the line terminator for next time
+
+      sval = new String(quote,0,n);
+      return ttype = q;
+   }
+
+   /**
+    * Read a list of numbers and the character that closes it,
+    * for example the rest of an array after the opening bracket.
+    * @return The numbers, or null if the list is empty or something else
+    *         comes first, in which case nothing has been consumed.
+    */
+   public double[] readNumbers(int close) {
+      if (pushedBack) return null;
+      int savePos = pos;
+      int saveLine = line;
+      int saveType = ttype;
+
+      int n = 0;
+      while (true) {
+         int t = nextToken();
+         if (t == TT_NUMBER) {
+            if (n == number.length) {
+               double[] temp = new double[2*n];
+               System.arraycopy(number,0,temp,0,n);
+               number = temp;
+            }
+            number[n++] = nval;
+         } else if (t == close && n != 0) {
+            break;
+         } else {
+            pos = savePos;
+            line = saveLine;
+            ttype = saveType;
+            return null;
+         }
+      }
+
+      double[] d = new double[n];
+      System.arraycopy(number,0,d,0,n);
+      return d;
+   }
+
+   public String toString() {
+      String s;
+      switch (ttype) {
+      case TT_EOF:     s = "EOF";          break;
+      case TT_NUMBER:  s = "n=" + nval;    break;
+      case TT_WORD:    s = sval;           break;
+      case TT_NOTHING: s = "NOTHING";      break;
+      default:
+         if (sval != null) { s = sval; break; } // quoted string
+         s = "'" + (char) ttype + "'";
+         break;
+      }
+      return "Token[" + s + "], line " + line;
+   }
+
+}